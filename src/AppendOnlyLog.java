@@ -0,0 +1,112 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Append-only log of records mirroring a state kept in memory (see CacheJournal and
+ * VersionTable, which define the records).
+ *
+ * 1. On load, the records are replayed in order into the state. A truncated record at
+ *    the tail (crash while appending) ends the replay, as does a corrupted one.
+ * 2. Every change of the state is appended as a record and flushed.
+ * 3. When the number of records grows past twice the number of live entries of the
+ *    state, the log is compacted: the live state is written to a temporary file which
+ *    atomically replaces the log. It is also compacted on load.
+ * 4. After a write error, the log is disabled. The state keeps working in memory.
+ */
+
+public abstract class AppendOnlyLog {
+
+	// log is not compacted before it has this many records
+	private static final int MIN_COMPACT_RECORDS = 1024;
+
+	// writes a record
+	protected interface Record {
+		public void write(DataOutputStream out) throws IOException;
+	}
+
+	private File logFile;
+	private DataOutputStream out;
+	private long records = 0;
+
+	// constructor. The log is stored in the given file
+	protected AppendOnlyLog(File logFile) {
+		this.logFile = logFile;
+	}
+
+	// read one record into the state. return false if the record is corrupted
+	protected abstract boolean readRecord(DataInputStream in) throws IOException;
+
+	// write the live state as records
+	protected abstract void writeLive(DataOutputStream out) throws IOException;
+
+	// number of live entries of the state
+	protected abstract int liveEntries();
+
+	/*
+	 * Replay the log into the state, compact it and open it for appending.
+	 */
+	protected void replay() throws IOException {
+		if (logFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+				while (readRecord(in)) {
+					// next record
+				}
+			} catch (EOFException e) {
+				// end of the log (or truncated record)
+			}
+		}
+		compact();
+	}
+
+	// append a record, and compact the log if required
+	protected void append(Record record) {
+		try {
+			record.write(out);
+			out.flush();
+			records++;
+			if (records > MIN_COMPACT_RECORDS && records > 2L * liveEntries())
+				compact();
+		} catch (IOException e) {
+			disable();
+		}
+	}
+
+	/*
+	 * Rewrite the log with only the live state. The new log is written to a temporary
+	 * file and renamed over the old one, so a crash leaves either of them intact.
+	 */
+	private void compact() throws IOException {
+		if (out != null)
+			out.close();
+		File tmp = new File(logFile.getPath() + ".tmp");
+		FileOutputStream fOut = new FileOutputStream(tmp);
+		try (DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(fOut))) {
+			writeLive(tmpOut);
+			tmpOut.flush();
+			fOut.getFD().sync();
+		}
+		Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		records = liveEntries();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+	}
+
+	// stop logging after an error
+	private void disable() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Error closing the log
+		}
+		out = new DataOutputStream(OutputStream.nullOutputStream());
+	}
+}
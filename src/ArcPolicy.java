@@ -0,0 +1,112 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Adaptive Replacement Cache policy (scan resistant).
+ * 
+ * T1 holds files seen once recently, T2 files seen at least twice. B1 and B2 are
+ * ghost lists remembering the server file names recently evicted from T1 and T2.
+ * A hit in B1 grows the target size p of T1, a hit in B2 shrinks it, so the policy
+ * adapts between recency and frequency. A one-off scan only passes through T1 and
+ * does not push the hot set in T2 out of the cache.
+ * Sizes are counted in files. All operations are O(1) apart from skipping files
+ * which cannot be evicted.
+ */
+
+public class ArcPolicy implements EvictionPolicy {
+	
+	// minimum number of ghost entries remembered
+	private static final int MIN_GHOSTS = 64;
+	
+	// resident files keyed by the cache file path, in LRU order
+	private LinkedHashMap<String, FileCache> t1 = new LinkedHashMap<String, FileCache>();
+	private LinkedHashMap<String, FileCache> t2 = new LinkedHashMap<String, FileCache>();
+	// ghost entries keyed by the server file name, in LRU order
+	private LinkedHashMap<String, Boolean> b1 = new LinkedHashMap<String, Boolean>();
+	private LinkedHashMap<String, Boolean> b2 = new LinkedHashMap<String, Boolean>();
+	// target size of T1
+	private double p = 0;
+
+	public String getName() {
+		return "arc";
+	}
+
+	public void onInsert(FileCache file, long size) {
+		String path = file.getFilePath();
+		String name = file.getServerFileName();
+		if (t1.containsKey(path) || t2.containsKey(path)) {
+			onAccess(file);
+			return;
+		}
+		int c = t1.size() + t2.size() + 1;
+		if (b1.containsKey(name)) {
+			// recency miss. Favour T1
+			p = Math.min(c, p + Math.max((double) b2.size() / b1.size(), 1));
+			b1.remove(name);
+			t2.put(path, file);
+		} else if (b2.containsKey(name)) {
+			// frequency miss. Favour T2
+			p = Math.max(0, p - Math.max((double) b1.size() / b2.size(), 1));
+			b2.remove(name);
+			t2.put(path, file);
+		} else {
+			t1.put(path, file);
+		}
+	}
+
+	public void onAccess(FileCache file) {
+		String path = file.getFilePath();
+		if (t1.remove(path) != null || t2.remove(path) != null)
+			// hit. Move the file to the MRU end of T2
+			t2.put(path, file);
+		else
+			onInsert(file, file.getFileSize());
+	}
+
+	public void onRemove(FileCache file, boolean evicted) {
+		String path = file.getFilePath();
+		boolean inT1 = t1.remove(path) != null;
+		boolean inT2 = !inT1 && t2.remove(path) != null;
+		if (!evicted)
+			return;
+		// remember the evicted file in the ghost list of its list
+		if (inT1)
+			b1.put(file.getServerFileName(), Boolean.TRUE);
+		else if (inT2)
+			b2.put(file.getServerFileName(), Boolean.TRUE);
+		trimGhosts();
+	}
+	
+	// bound the ghost lists by the number of resident files
+	private void trimGhosts() {
+		int limit = Math.max(t1.size() + t2.size(), MIN_GHOSTS);
+		while (b1.size() + b2.size() > limit) {
+			LinkedHashMap<String, Boolean> ghosts = b1.size() > b2.size() ? b1 : b2;
+			Iterator<String> it = ghosts.keySet().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	public boolean contains(String path) {
+		return t1.containsKey(path) || t2.containsKey(path);
+	}
+
+	// evict from T1 while it is larger than its target, else from T2
+	public FileCache selectVictim(Predicate<FileCache> canEvict) {
+		boolean fromT1 = !t1.isEmpty() && t1.size() > p;
+		FileCache victim = firstEvictable(fromT1 ? t1 : t2, canEvict);
+		if (victim == null)
+			victim = firstEvictable(fromT1 ? t2 : t1, canEvict);
+		return victim;
+	}
+	
+	private FileCache firstEvictable(LinkedHashMap<String, FileCache> list, Predicate<FileCache> canEvict) {
+		for (FileCache file : list.values()) {
+			if (canEvict.test(file))
+				return file;
+		}
+		return null;
+	}
+}
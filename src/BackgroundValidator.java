@@ -0,0 +1,108 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates the latest versions of all the files in the cache in the background.
+ *
+ * 1. The versions are sent to the server in batches (validate), one RPC per BATCH_SIZE
+ *    files, instead of one openSession per file.
+ * 2. The server answers with the files that changed only; the other files are
+ *    unchanged as of the time the batch was sent.
+ * 3. The results are passed to a listener, which refreshes the freshness of the files
+ *    (see FreshnessTracker) and fetches the new versions ahead of the opens.
+ */
+
+public class BackgroundValidator {
+
+	// Receives the results of the validations
+	public interface Listener {
+		// the version in the cache is the latest version of the file, as of the given time
+		public void unchanged(FileCache cached, long at);
+		// the file changed on the server. latest has the new version, size and number of
+		// blocks of the file, or an error code if it can no longer be read (ENOENT if unlinked)
+		public void changed(FileCache cached, FileCache latest, long at);
+	}
+
+	// maximum number of files validated in one RPC
+	private static final int BATCH_SIZE = 1000;
+
+	private final RmiInterface svr;		// the server
+	private final CacheMgr cacheMgr;	// the cache validated
+	private final Listener listener;	// receives the results
+	// statistics
+	private final AtomicLong validations = new AtomicLong();
+	private final AtomicLong rpcs = new AtomicLong();
+	private final AtomicLong changes = new AtomicLong();
+
+	// constructor
+	public BackgroundValidator(RmiInterface svr, CacheMgr cacheMgr, Listener listener) {
+		this.svr = svr;
+		this.cacheMgr = cacheMgr;
+		this.listener = listener;
+	}
+
+	/*
+	 * Validate the latest versions of all the files in the cache.
+	 * return the number of files which changed, -1 if the server could not be reached
+	 */
+	public int validateAll() {
+		List<FileCache> cached = cacheMgr.getLatestVersions();
+		int changed = 0;
+		for (int from = 0; from < cached.size(); from += BATCH_SIZE) {
+			List<FileCache> batch = cached.subList(from, Math.min(from + BATCH_SIZE, cached.size()));
+			// only the names and the versions are sent
+			ArrayList<FileCache> request = new ArrayList<FileCache>(batch.size());
+			for (FileCache file : batch) {
+				FileCache entry = new FileCache(file.getServerFileName(), "READ");
+				entry.setVersion(file.getVersion());
+				request.add(entry);
+			}
+			long at = System.currentTimeMillis();
+			List<FileCache> latest;
+			try {
+				latest = svr.validate(request);
+			} catch (RemoteException e) {
+				// Unable to connect to the server. Validated on the next run
+				return -1;
+			}
+			rpcs.incrementAndGet();
+			validations.addAndGet(batch.size());
+
+			HashMap<String, FileCache> byName = new HashMap<String, FileCache>();
+			for (FileCache file : latest)
+				byName.put(file.getServerFileName(), file);
+			for (FileCache file : batch) {
+				FileCache update = byName.get(file.getServerFileName());
+				if (update == null) {
+					listener.unchanged(file, at);
+				} else {
+					listener.changed(file, update, at);
+					changed++;
+				}
+			}
+		}
+		changes.addAndGet(changed);
+		return changed;
+	}
+
+	// start a background thread which validates the cache every period milliseconds
+	public void start(long period) {
+		ScheduledExecutorService validator = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cache-validator");
+			t.setDaemon(true);
+			return t;
+		});
+		validator.scheduleWithFixedDelay(this::validateAll, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	// return the statistics of the validations as a printable string
+	public String getStats() {
+		return String.format("validations=%d validationRpcs=%d validationChanges=%d", validations.get(), rpcs.get(), changes.get());
+	}
+}
@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Batched validation of the cached versions against the server (BackgroundValidator and
+ * the validate RPC).
+ */
+
+public class BackgroundValidatorTest {
+
+	static String serverDir = "tests_validate";
+	static String port = "1164";
+	static Server server = null;
+
+	// results passed to the listener, against the server file name
+	static class Results implements BackgroundValidator.Listener {
+		List<String> unchanged = new ArrayList<String>();
+		HashMap<String, FileCache> changed = new HashMap<String, FileCache>();
+
+		public void unchanged(FileCache cached, long at) {
+			unchanged.add(cached.getServerFileName());
+		}
+
+		public void changed(FileCache cached, FileCache latest, long at) {
+			changed.put(cached.getServerFileName(), latest);
+		}
+	}
+
+	@BeforeClass
+	public static void setupServer() throws IOException {
+		TestFiles.clean(serverDir);
+		Files.write(Paths.get(serverDir, "a.txt"), TestFiles.content('a', 100));
+		Files.write(Paths.get(serverDir, "b.txt"), TestFiles.content('b', 200));
+		Server.main(new String[] {port, serverDir});
+		server = new Server();
+	}
+
+	// the server answers with the files which changed only
+	@Test
+	public void changedFilesOnly() throws IOException {
+		CacheMgr mgr = cache("cache_validate");
+		long a = server.getVersion("a.txt");
+		Assert.assertTrue(a > 0);
+		mgr.setLatestVersion("a.txt", version("a.txt", a));
+		// b.txt was updated since it was cached, c.txt unlinked
+		mgr.setLatestVersion("b.txt", version("b.txt", 1));
+		mgr.setLatestVersion("c.txt", version("c.txt", 1));
+
+		Results results = new Results();
+		BackgroundValidator validator = new BackgroundValidator(server, mgr, results);
+		Assert.assertEquals(2, validator.validateAll());
+		Assert.assertEquals(List.of("a.txt"), results.unchanged);
+		FileCache b = results.changed.get("b.txt");
+		Assert.assertEquals(0, b.getErrorCode());
+		Assert.assertEquals(server.getVersion("b.txt"), b.getVersion());
+		Assert.assertEquals(200, b.getFileSize());
+		Assert.assertEquals(1, b.getNrOfBlocks());
+		Assert.assertEquals(FileHandling.Errors.ENOENT, results.changed.get("c.txt").getErrorCode());
+		Assert.assertTrue(validator.getStats().contains("validations=3 validationRpcs=1 validationChanges=2"));
+	}
+
+	// the files are validated in batches of at most 1000 files
+	@Test
+	public void batches() throws IOException {
+		CacheMgr mgr = cache("cache_validate_batches");
+		mgr.setLatestVersion("a.txt", version("a.txt", server.getVersion("a.txt")));
+		// files which are not on the server
+		for (int i = 1; i < 2500; i++)
+			mgr.setLatestVersion("f" + i, version("f" + i, 1));
+
+		Results results = new Results();
+		BackgroundValidator validator = new BackgroundValidator(server, mgr, results);
+		Assert.assertEquals(2499, validator.validateAll());
+		Assert.assertEquals(1, results.unchanged.size());
+		Assert.assertTrue(validator.getStats().contains("validations=2500 validationRpcs=3"));
+	}
+
+	// a server which cannot be reached validates nothing
+	@Test
+	public void serverUnreachable() throws IOException {
+		CacheMgr mgr = cache("cache_validate_down");
+		mgr.setLatestVersion("a.txt", version("a.txt", 1));
+		RmiInterface down = (RmiInterface) Proxy.newProxyInstance(RmiInterface.class.getClassLoader(),
+				new Class<?>[] {RmiInterface.class}, (proxy, method, args) -> {
+					throw new RemoteException("down");
+				});
+
+		Results results = new Results();
+		BackgroundValidator validator = new BackgroundValidator(down, mgr, results);
+		Assert.assertEquals(-1, validator.validateAll());
+		Assert.assertTrue(results.unchanged.isEmpty());
+		Assert.assertTrue(results.changed.isEmpty());
+	}
+
+	private static CacheMgr cache(String dir) {
+		TestFiles.clean(dir);
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(1000000);
+		return mgr;
+	}
+
+	private static FileCache version(String path, long version) {
+		FileCache file = new FileCache(path, "READ");
+		file.setFilePath(path + "_v" + version);
+		file.setVersion(version);
+		file.setFileSize(100);
+		return file;
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches the blocks of a file from the server in parallel.
+ * 
+ * 1. Up to window block requests of a file are in flight at a time, so the fetch time of
+ *    a large file is no longer the number of blocks times the round trip time.
+ * 2. Each block is written at its offset with a positional write, so blocks may arrive
+ *    in any order. Only the fetching thread writes; it writes a block while the
+ *    following blocks are being received.
+ * 3. The bytes of the blocks in flight are capped across all the fetches of the proxy,
+ *    so a few large files cannot exhaust the memory.
+ */
+
+public class BlockFetcher {
+	
+	private final int blockSize;			// size of a block
+	private final int window;				// block requests in flight per file
+	private final Semaphore inFlightBytes;	// bytes of the blocks in flight across the proxy
+	
+	// worker threads shared by all the fetches
+	private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "block-fetcher");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	// constructor. maxInFlightBytes should not be smaller than the block size
+	public BlockFetcher(int blockSize, int window, int maxInFlightBytes) {
+		this.blockSize = blockSize;
+		this.window = window;
+		this.inFlightBytes = new Semaphore(Math.max(maxInFlightBytes, blockSize), true);
+	}
+	
+	/*
+	 * Fetch the file of the given session (size bytes) into the channel.
+	 * return the number of bytes written. Throws IOException if a block could not be
+	 * fetched or written; the blocks still in flight are completed before returning.
+	 * 
+	 * The workers only receive the blocks. The calling thread is the only writer of the
+	 * channel: it requests the next blocks before it writes a received one, so the
+	 * network and the disk are busy at the same time even with a window of 1.
+	 */
+	public long fetch(RmiInterface svr, long handle, long size, FileChannel out) throws IOException {
+		return fetch(svr, handle, size, null, out);
+	}
+	
+	/*
+	 * Fetch the file of the given session (size bytes) into the channel as deltas against
+	 * an older version of the file (see DeltaSync). The signature of the older version must
+	 * be set on the session. The blocks referred to by the deltas are read from base.
+	 * return the number of bytes received. Throws IOException if a block could not be
+	 * fetched or written.
+	 */
+	public long fetchDelta(RmiInterface svr, long handle, long size, FileChannel base, FileChannel out) throws IOException {
+		return fetch(svr, handle, size, base, out);
+	}
+	
+	// fetch the blocks, or their deltas against base if base is not null.
+	// return the number of bytes received
+	private long fetch(RmiInterface svr, long handle, long size, FileChannel base, FileChannel out) throws IOException {
+		int nrOfBlocks = (int) ((size + blockSize - 1) / blockSize);
+		ExecutorCompletionService<Block> completed = new ExecutorCompletionService<Block>(workers);
+		int next = 0, inFlight = 0;
+		long written = 0;
+		Block received = null;
+		IOException error = null;
+		boolean interrupted = false;
+		
+		while (true) {
+			// keep the window full unless a block failed
+			while (error == null && next < nrOfBlocks && inFlight < window) {
+				long offset = (long) next * blockSize;
+				int length = (int) Math.min(blockSize, size - offset);
+				completed.submit(() -> fetchBlock(svr, handle, offset, length, base != null));
+				next++;
+				inFlight++;
+			}
+			
+			// write the received block while the next ones are on the wire
+			if (received != null) {
+				try {
+					if (error == null)
+						written += writeBlock(received, base, out);
+				} catch (IOException e) {
+					error = e;
+				} finally {
+					inFlightBytes.release(received.length);
+					received = null;
+				}
+			}
+			if (inFlight == 0)
+				break;
+			
+			try {
+				received = completed.take().get();
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				// no more blocks are requested. The blocks in flight are still taken, so
+				// that the bytes they hold in inFlightBytes are released
+				if (error == null)
+					error = new IOException(e);
+				interrupted = true;
+				continue;
+			}
+			inFlight--;
+		}
+		
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error != null)
+			throw error;
+		return written;
+	}
+	
+	/*
+	 * Receive one block. The bytes stay accounted in inFlightBytes until the block
+	 * has been written by the fetching thread.
+	 */
+	private Block fetchBlock(RmiInterface svr, long handle, long offset, int length, boolean delta) throws IOException, InterruptedException {
+		inFlightBytes.acquire(length);
+		try {
+			byte[] bytes = delta ? svr.getDelta(handle, offset, length) : svr.getBlock(handle, offset, length);
+			if (bytes == null)
+				throw new IOException("Error reading block at " + offset);
+			return new Block(offset, length, bytes);
+		} catch (IOException | RuntimeException e) {
+			inFlightBytes.release(length);
+			throw e;
+		}
+	}
+	
+	// write a received block (or apply its delta against base) at its offset.
+	// return the number of bytes received
+	private static int writeBlock(Block block, FileChannel base, FileChannel out) throws IOException {
+		if (base != null) {
+			if (DeltaSync.apply(block.bytes, base, out, block.offset) != block.offset + block.length)
+				throw new IOException("Invalid delta of block at " + block.offset);
+			return block.bytes.length;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(block.bytes);
+		while (buf.hasRemaining())
+			out.write(buf, block.offset + buf.position());
+		return block.bytes.length;
+	}
+	
+	// a block received from the server
+	private static class Block {
+		final long offset;		// offset of the block in the file
+		final int length;		// bytes accounted for the block
+		final byte[] bytes;		// contents of the block
+		
+		Block(long offset, int length, byte[] bytes) {
+			this.offset = offset;
+			this.length = length;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Parallel fetch of the blocks of a file (BlockFetcher), against a server answering the
+ * block requests slowly.
+ */
+
+public class BlockFetcherTest {
+
+	static String dir = "tests_fetcher";
+	static final int BLOCK = 10;
+
+	// the blocks are written at their offsets
+	@Test
+	public void fetch() throws IOException {
+		TestFiles.clean(dir);
+		BlockFetcher fetcher = new BlockFetcher(BLOCK, 3, 2 * BLOCK);
+		Path out = Paths.get(dir, "out");
+		try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			Assert.assertEquals(95, fetcher.fetch(server(20), 1, 95, channel));
+		}
+		Assert.assertArrayEquals(expected(95), Files.readAllBytes(out));
+	}
+
+	// an interrupted fetch releases the bytes of the blocks it had in flight, so the
+	// following fetches are not starved
+	@Test
+	public void interruptedFetchReleasesBlocks() throws Exception {
+		TestFiles.clean(dir);
+		BlockFetcher fetcher = new BlockFetcher(BLOCK, 4, 4 * BLOCK);
+		RmiInterface svr = server(300);
+		AtomicBoolean failed = new AtomicBoolean();
+		AtomicBoolean stillInterrupted = new AtomicBoolean();
+		Thread t = new Thread(() -> {
+			try (FileChannel channel = FileChannel.open(Paths.get(dir, "interrupted"), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				fetcher.fetch(svr, 1, 4 * BLOCK, channel);
+			} catch (IOException e) {
+				failed.set(true);
+			}
+			stillInterrupted.set(Thread.currentThread().isInterrupted());
+		});
+		t.start();
+		Thread.sleep(100);
+		t.interrupt();
+		t.join(5000);
+		Assert.assertTrue(failed.get());
+		Assert.assertTrue(stillInterrupted.get());
+
+		Thread next = new Thread(() -> {
+			try (FileChannel channel = FileChannel.open(Paths.get(dir, "next"), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE)) {
+				fetcher.fetch(server(0), 1, 4 * BLOCK, channel);
+			} catch (IOException e) {
+				// checked below
+			}
+		});
+		next.start();
+		next.join(5000);
+		Assert.assertFalse("fetch starved", next.isAlive());
+		Assert.assertArrayEquals(expected(4 * BLOCK), Files.readAllBytes(Paths.get(dir, "next")));
+	}
+
+	// server answering the block requests after delay milliseconds. Byte i of the file is i
+	private static RmiInterface server(long delay) {
+		return (RmiInterface) Proxy.newProxyInstance(RmiInterface.class.getClassLoader(),
+				new Class<?>[] {RmiInterface.class}, (proxy, method, args) -> {
+					if (!method.getName().equals("getBlock"))
+						throw new UnsupportedOperationException(method.getName());
+					Thread.sleep(delay);
+					long offset = (Long) args[1];
+					byte[] b = new byte[(Integer) args[2]];
+					for (int i = 0; i < b.length; i++)
+						b[i] = (byte) (offset + i);
+					return b;
+				});
+	}
+
+	private static byte[] expected(int size) {
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++)
+			b[i] = (byte) i;
+		return b;
+	}
+}
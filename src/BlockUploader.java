@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends the blocks of a file to a write session on the server in parallel.
+ *
+ * 1. Up to window blocks of a file are read and sent at a time. The server writes
+ *    each block at its offset, so blocks may arrive in any order.
+ * 2. Blocks are read from the file with positional reads; the uploads of different
+ *    files share no lock.
+ * 3. The bytes of the blocks in flight are capped across all the uploads of the proxy.
+ */
+
+public class BlockUploader {
+
+	private final int blockSize;			// size of a block
+	private final int window;				// blocks in flight per file
+	private final Semaphore inFlightBytes;	// bytes of the blocks in flight across the proxy
+
+	// worker threads shared by all the uploads
+	private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "block-uploader");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// constructor. maxInFlightBytes should not be smaller than the block size
+	public BlockUploader(int blockSize, int window, int maxInFlightBytes) {
+		this.blockSize = blockSize;
+		this.window = window;
+		this.inFlightBytes = new Semaphore(Math.max(maxInFlightBytes, blockSize), true);
+	}
+
+	/*
+	 * Send size bytes of the file to the write session of the given handle.
+	 * return the number of bytes sent. Throws IOException if a block could not be
+	 * read or written; the blocks still in flight are completed before returning.
+	 */
+	public long upload(RmiInterface svr, long handle, CachedFile in, long size) throws IOException {
+		int nrOfBlocks = (int) ((size + blockSize - 1) / blockSize);
+		ExecutorCompletionService<Integer> completed = new ExecutorCompletionService<Integer>(workers);
+		int next = 0, inFlight = 0;
+		long sent = 0;
+		IOException error = null;
+		boolean interrupted = false;
+
+		while (true) {
+			// keep the window full unless a block failed
+			while (error == null && next < nrOfBlocks && inFlight < window) {
+				long offset = (long) next * blockSize;
+				int length = (int) Math.min(blockSize, size - offset);
+				completed.submit(() -> sendBlock(svr, handle, in, offset, length));
+				next++;
+				inFlight++;
+			}
+			if (inFlight == 0)
+				break;
+
+			try {
+				sent += completed.take().get();
+			} catch (ExecutionException e) {
+				if (error == null)
+					error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				// no more blocks are sent. The blocks in flight are still waited for, so
+				// that none is written to the session after the upload returns
+				if (error == null)
+					error = new IOException(e);
+				interrupted = true;
+				continue;
+			}
+			inFlight--;
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (error != null)
+			throw error;
+		return sent;
+	}
+
+	// read one block at its offset and send it. return the number of bytes sent
+	private int sendBlock(RmiInterface svr, long handle, CachedFile in, long offset, int length) throws IOException, InterruptedException {
+		inFlightBytes.acquire(length);
+		try {
+			byte[] bytes = new byte[length];
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining()) {
+				// positional read. The blocks of the file are read in parallel
+				if (in.read(buf, offset + buf.position()) < 0)
+					throw new IOException("File shorter than expected at " + (offset + buf.position()));
+			}
+			if (svr.writeBlock(handle, offset, bytes) != 0)
+				throw new IOException("Error writing block at " + offset);
+			return length;
+		} finally {
+			inFlightBytes.release(length);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+import java.rmi.*;
+
+/**
+ * RMI interface exported by the proxy, through which the server breaks the promises
+ * (callbacks) it made on the files cached by the proxy.
+ */
+
+public interface CacheCallback extends java.rmi.Remote {
+
+	// The file has changed on the server: a version was committed or the file was unlinked.
+	// stamp is the version committed, or a newer version number if the file was unlinked
+	public void breakPromise(String path, long stamp) throws RemoteException;
+}
@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Eviction of versions which were opened (and closed) by clients, through CacheMgr and
+ * through a proxy connected to a server.
+ */
+
+public class CacheEvictionTest {
+
+	static String serverDir = "tests_evict";
+	static String cacheDir = "cache_evict";
+	static String port = "1161";
+	static Proxy.FileHandler handler = null;
+
+	@BeforeClass
+	public static void setupServer() throws IOException {
+		TestFiles.clean(serverDir);
+		TestFiles.clean(cacheDir);
+		Files.write(Paths.get(serverDir, "a.txt"), TestFiles.content('a', 1000));
+		Files.write(Paths.get(serverDir, "b.txt"), TestFiles.content('b', 1000));
+		Server.main(new String[] {port, serverDir});
+		// the cache holds one of the files only
+		Proxy.check_args(new String[] {"localhost", port, cacheDir, "1500"});
+		Proxy.connect_to_server("localhost", port);
+		handler = new Proxy.FileHandler();
+	}
+
+	// A version evicted through another FileCache object of the same cache file
+	// (as recorded by the replacement policy) is removed from the versions of the file
+	@Test
+	public void evictedVersionIsUnlinked() throws IOException {
+		String dir = "cache_evict_mgr";
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "x_v1"), TestFiles.content('x', 800));
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(1000);
+
+		FileCache version = new FileCache("x", "READ");
+		version.setFilePath("x_v1");
+		version.setVersion(1);
+		version.setFileSize(800);
+		mgr.setLatestVersion("x", version);
+		Assert.assertTrue(mgr.pinVersion(version));
+
+		// the client holds its own object of the version
+		FileCache session = new FileCache("x", "READ");
+		session.setFilePath("x_v1");
+		session.setVersion(1);
+		session.setFileSize(800);
+		mgr.markFileAsMRU(session);
+		mgr.releaseVersion(session);
+
+		Assert.assertTrue(mgr.reserveSpace(500, "y", false));
+		Assert.assertNull(mgr.isFileInCache("x"));
+		Assert.assertFalse(new File(dir, "x_v1").exists());
+		Assert.assertFalse(mgr.pinVersion(version));
+	}
+
+	// A version registered without being opened by a client (e.g. fetched in the background)
+	// is evicted once it is not pinned
+	@Test
+	public void unopenedVersionIsEvicted() throws IOException {
+		String dir = "cache_evict_idle";
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "x_v1"), TestFiles.content('x', 800));
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(1000);
+
+		FileCache version = new FileCache("x", "READ");
+		version.setFilePath("x_v1");
+		version.setVersion(1);
+		version.setFileSize(800);
+		mgr.setLatestVersion("x", version);
+		Assert.assertTrue(mgr.pinVersion(version));
+		// pinned versions are not evicted
+		Assert.assertFalse(mgr.reserveSpace(500, "y", false));
+		mgr.releaseVersion(version);
+
+		Assert.assertTrue(mgr.reserveSpace(500, "y", false));
+		Assert.assertNull(mgr.isFileInCache("x"));
+		Assert.assertFalse(new File(dir, "x_v1").exists());
+	}
+
+	// A file evicted after cache hits is fetched again when it is reopened
+	@Test
+	public void evictThenReopen() {
+		Assert.assertArrayEquals(TestFiles.content('a', 1000), read("a.txt"));
+		Assert.assertArrayEquals(TestFiles.content('a', 1000), read("a.txt"));
+		// evicts a.txt
+		Assert.assertArrayEquals(TestFiles.content('b', 1000), read("b.txt"));
+		Assert.assertArrayEquals(TestFiles.content('a', 1000), read("a.txt"));
+		Assert.assertArrayEquals(TestFiles.content('a', 1000), read("a.txt"));
+	}
+
+	// read the whole file through the proxy
+	private static byte[] read(String path) {
+		int fd = handler.open(path, FileHandling.OpenOption.READ);
+		Assert.assertTrue("open " + path + " returned " + fd, fd >= 0);
+		byte[] buf = new byte[2000];
+		long n = handler.read(fd, buf);
+		Assert.assertEquals(0, handler.close(fd));
+		return Arrays.copyOf(buf, (int) Math.max(n, 0));
+	}
+
+}
@@ -0,0 +1,135 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only journal of the cache metadata, used to rebuild the CacheMgr state
+ * after a restart of the proxy.
+ * 
+ * Record types:
+ *	PUT		: server file name, cache file name, version, size
+ *	ACCESS	: cache file name. Moves the entry to the warm end
+ *	REMOVE	: cache file name
+ * 
+ * The journal keeps a mirror of the live entries in LRU order (cold first), written
+ * as PUT records when the journal is compacted (see AppendOnlyLog).
+ */
+
+public class CacheJournal extends AppendOnlyLog {
+	
+	// name of the journal file in the cache directory
+	public static final String JOURNAL_NAME = ".cache_journal";
+	
+	private static final byte PUT = 'P';
+	private static final byte ACCESS = 'A';
+	private static final byte REMOVE = 'R';
+	
+	// entry of a cached file
+	public static class Entry {
+		public String serverFileName;
+		public String cacheFileName;
+		public long version;
+		public long size;
+	}
+	
+	// live entries keyed by the cache file name, cold first
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	
+	// constructor. The journal is stored in the given cache directory
+	public CacheJournal(String cacheDir) {
+		super(new File(cacheDir, JOURNAL_NAME));
+	}
+	
+	/*
+	 * Read the journal and return the live entries in LRU order (cold first).
+	 * The journal is compacted and opened for appending.
+	 */
+	public synchronized List<Entry> load() throws IOException {
+		entries.clear();
+		replay();
+		return new ArrayList<Entry>(entries.values());
+	}
+	
+	// record a file added to the cache as a version of the given path
+	public synchronized void put(String path, FileCache file, long size) {
+		Entry e = new Entry();
+		e.serverFileName = path;
+		e.cacheFileName = file.getFilePath();
+		e.version = file.getVersion();
+		e.size = size;
+		entries.remove(e.cacheFileName);
+		entries.put(e.cacheFileName, e);
+		append(out -> writePut(out, e));
+	}
+	
+	// record an access of a file in the cache
+	public synchronized void access(String cacheFileName) {
+		Entry e = entries.remove(cacheFileName);
+		if (e == null)
+			// file is not journaled (private copy)
+			return;
+		entries.put(cacheFileName, e);
+		append(out -> {
+			out.writeByte(ACCESS);
+			out.writeUTF(cacheFileName);
+		});
+	}
+	
+	// record a file removed from the cache
+	public synchronized void remove(String cacheFileName) {
+		if (entries.remove(cacheFileName) == null)
+			return;
+		append(out -> {
+			out.writeByte(REMOVE);
+			out.writeUTF(cacheFileName);
+		});
+	}
+	
+	// replay a record
+	protected boolean readRecord(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == PUT) {
+			Entry e = new Entry();
+			e.serverFileName = in.readUTF();
+			e.cacheFileName = in.readUTF();
+			e.version = in.readLong();
+			e.size = in.readLong();
+			entries.remove(e.cacheFileName);
+			entries.put(e.cacheFileName, e);
+		} else if (type == ACCESS) {
+			String name = in.readUTF();
+			Entry e = entries.remove(name);
+			if (e != null)
+				entries.put(name, e);
+		} else if (type == REMOVE) {
+			entries.remove(in.readUTF());
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	// write the live entries as PUT records
+	protected void writeLive(DataOutputStream out) throws IOException {
+		for (Entry e : entries.values())
+			writePut(out, e);
+	}
+	
+	// number of live entries
+	protected int liveEntries() {
+		return entries.size();
+	}
+	
+	// write a PUT record
+	private static void writePut(DataOutputStream out, Entry e) throws IOException {
+		out.writeByte(PUT);
+		out.writeUTF(e.serverFileName);
+		out.writeUTF(e.cacheFileName);
+		out.writeLong(e.version);
+		out.writeLong(e.size);
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Replay and compaction of the cache journal (CacheJournal), and the cache state
+ * rebuilt from it (CacheMgr.loadJournal).
+ */
+
+public class CacheJournalTest {
+
+	static String dir = "cache_journal";
+
+	// the live entries are replayed in LRU order, cold first
+	@Test
+	public void replayOrder() throws IOException {
+		TestFiles.clean(dir);
+		CacheJournal journal = new CacheJournal(dir);
+		journal.load();
+		journal.put("a", version("a", "a_v1", 1), 10);
+		journal.put("b", version("b", "b_v2", 2), 20);
+		journal.put("c", version("c", "c_v3", 3), 30);
+		journal.access("a_v1");
+		journal.remove("b_v2");
+
+		List<CacheJournal.Entry> entries = new CacheJournal(dir).load();
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("c_v3", entries.get(0).cacheFileName);
+		Assert.assertEquals("a_v1", entries.get(1).cacheFileName);
+		Assert.assertEquals("a", entries.get(1).serverFileName);
+		Assert.assertEquals(1, entries.get(1).version);
+		Assert.assertEquals(10, entries.get(1).size);
+	}
+
+	// a record truncated by a crash is ignored
+	@Test
+	public void truncatedRecordIgnored() throws IOException {
+		TestFiles.clean(dir);
+		CacheJournal journal = new CacheJournal(dir);
+		journal.load();
+		journal.put("a", version("a", "a_v1", 1), 10);
+		journal.put("b", version("b", "b_v2", 2), 20);
+		try (RandomAccessFile rf = new RandomAccessFile(new File(dir, CacheJournal.JOURNAL_NAME), "rw")) {
+			rf.setLength(rf.length() - 5);
+		}
+
+		List<CacheJournal.Entry> entries = new CacheJournal(dir).load();
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals("a_v1", entries.get(0).cacheFileName);
+	}
+
+	// the accesses are compacted away, keeping the LRU order
+	@Test
+	public void compaction() throws IOException {
+		TestFiles.clean(dir);
+		CacheJournal journal = new CacheJournal(dir);
+		journal.load();
+		journal.put("a", version("a", "a_v1", 1), 10);
+		journal.put("b", version("b", "b_v2", 2), 20);
+		for (int i = 0; i < 5000; i++)
+			journal.access(i % 2 == 0 ? "a_v1" : "b_v2");
+		File f = new File(dir, CacheJournal.JOURNAL_NAME);
+		Assert.assertTrue("journal not compacted: " + f.length(), f.length() < 2048 * 10);
+
+		List<CacheJournal.Entry> entries = new CacheJournal(dir).load();
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("a_v1", entries.get(0).cacheFileName);
+		Assert.assertEquals("b_v2", entries.get(1).cacheFileName);
+	}
+
+	// an older version used after the newer one does not become the latest version
+	// after a restart, and the files which are not journaled are deleted
+	@Test
+	public void loadKeepsLatestVersion() throws IOException {
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "a_v1"), new byte[10]);
+		Files.write(Paths.get(dir, "a_v9"), new byte[20]);
+		Files.write(Paths.get(dir, "c_v1"), new byte[5]);
+		// private copy and partial fetch left by a crash, and a file which is not a cache file
+		Files.write(Paths.get(dir, "a12_w"), new byte[7]);
+		Files.write(Paths.get(dir, "d_v4.txt"), new byte[3]);
+		Files.write(Paths.get(dir, "notes.txt"), new byte[2]);
+		CacheJournal journal = new CacheJournal(dir);
+		journal.load();
+		journal.put("a", version("a", "a_v1", 1), 10);
+		journal.put("a", version("a", "a_v9", 9), 20);
+		journal.access("a_v1");
+		// recorded with another size than the one of the file
+		journal.put("c", version("c", "c_v1", 1), 50);
+
+		CacheMgr mgr = new CacheMgr();
+		Assert.assertEquals(0, mgr.setCacheDir(dir));
+		mgr.setCacheSize(1000);
+		Assert.assertEquals(0, mgr.loadJournal());
+
+		Assert.assertEquals(9, mgr.isFileInCache("a").getVersion());
+		Assert.assertEquals("a_v9", mgr.isFileInCache("a").getFilePath());
+		Assert.assertNull(mgr.isFileInCache("c"));
+		Assert.assertTrue(new File(dir, "a_v9").exists());
+		Assert.assertFalse(new File(dir, "a_v1").exists());
+		Assert.assertFalse(new File(dir, "c_v1").exists());
+		Assert.assertFalse(new File(dir, "a12_w").exists());
+		Assert.assertFalse(new File(dir, "d_v4.txt").exists());
+		Assert.assertTrue(new File(dir, "notes.txt").exists());
+		Assert.assertEquals(22, mgr.getUsedSpace());
+	}
+
+	// the files of a directory used for the first time (without journal) are kept
+	@Test
+	public void noJournalKeepsFiles() throws IOException {
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "a_v1"), new byte[10]);
+		Files.write(Paths.get(dir, "notes.txt"), new byte[5]);
+
+		CacheMgr mgr = new CacheMgr();
+		Assert.assertEquals(0, mgr.setCacheDir(dir));
+		mgr.setCacheSize(1000);
+		Assert.assertEquals(0, mgr.loadJournal());
+
+		Assert.assertNull(mgr.isFileInCache("a"));
+		Assert.assertTrue(new File(dir, "a_v1").exists());
+		Assert.assertTrue(new File(dir, "notes.txt").exists());
+		Assert.assertTrue(new File(dir, CacheJournal.JOURNAL_NAME).exists());
+	}
+
+	private static FileCache version(String path, String cacheFileName, long version) {
+		FileCache file = new FileCache(path, "READ");
+		file.setFilePath(cacheFileName);
+		file.setVersion(version);
+		return file;
+	}
+}
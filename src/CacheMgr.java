@@ -1,13 +1,21 @@
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 
 /**
@@ -15,44 +23,150 @@ import java.util.concurrent.ConcurrentHashMap;
  * This class manages the Cache folder. Each file in the cache has an associated FileCache object
  * 
  * 1. Keeps track of different versions of the files
- * 2. Manages LRU cache replacement policy
+ * 2. Manages the cache replacement policy (see EvictionPolicy)
  * 3. Keeps track of the files currently in use
  * 
+ * Every version of a file is stored in its own cache file, shared by all the clients
+ * reading that version. The clients pin the version they read (pinVersion); a version
+ * which is no longer the latest is deleted when its last client releases it.
+ * 
+ * Concurrency: the version map and the in-use map are concurrent maps and are read
+ * without locking. The used space and the statistics are atomic counters. Only the
+ * replacement policy (and eviction, which walks it) is guarded by a short critical
+ * section on the lock object, as are the space reservations. A version is pinned and
+ * unlinked from the version map inside compute() on its in-use entry, so a version is
+ * never deleted while pinned. Callers serialize operations on the same file with
+ * per-path locks (see PathLockManager).
  */
 
 public class CacheMgr {
 	private String cacheDir;				//cache directory
 	private long cacheSize;					//cache size
-	private Object lock = new Object();		//object to handle locking
+	private AtomicLong usedSpace = new AtomicLong();	//bytes currently used by the files in the cache
+	private long reservedSpace = 0L;		//bytes reserved for files being written, guarded by lock
+	private Object lock = new Object();		//object to handle locking of the replacement policy and reservations
+	
+	// Names the proxy gives to the cache files: versions (name_v<version>.ext) and private
+	// copies (name<thread>_w.ext). Only such files are deleted from the cache directory
+	private static final Pattern CACHE_FILE_NAME = Pattern.compile(".*(_v\\d+|\\d+_w)(\\.[^.]*)?");
+	
+	// Replacement policy which orders the files for eviction. LRU by default
+	private volatile EvictionPolicy policy = new LruPolicy();
 	
-	// Linked list to handle LRU
-	// Storage: 
-	// ---- cold-> |0|1|2|3|......|n| <-warm
-	private LinkedList<FileCache> fileUseList = new LinkedList<FileCache>();
+	// Statistics to compare the replacement policies
+	private AtomicLong hits = new AtomicLong();			// opens served by the cache
+	private AtomicLong misses = new AtomicLong();		// opens which fetched the file from the server
+	private AtomicLong bytesFetched = new AtomicLong();	// bytes fetched from the server
+	private AtomicLong evictions = new AtomicLong();	// files evicted
+	private AtomicLong bytesEvicted = new AtomicLong();	// bytes evicted
+	
+	// Journal of the cache metadata to rebuild the state after a restart. null if not opened
+	private CacheJournal journal = null;
 	
 	// Map to store the different versions of a file against the master file name (server file name)
-	// Latest version is at the tail, oldest at the head
-	private ConcurrentHashMap<String, LinkedList<FileCache>> fileVersions = new ConcurrentHashMap<String, LinkedList<FileCache>>();
+	// Latest version is at the tail, oldest at the head. The lists are copy-on-write so
+	// they can be read without locking
+	private ConcurrentHashMap<String, CopyOnWriteArrayList<FileCache>> fileVersions = new ConcurrentHashMap<String, CopyOnWriteArrayList<FileCache>>();
 	
 	// Map to store the files which are currently in use against their FileCache object
 	private ConcurrentHashMap<String, Integer> filesInUse = new ConcurrentHashMap<String, Integer>();
 	
+	// Space committed for the files being written to the cache, against their path: the open
+	// private copies (see OverlayCachedFile), which are sparse, and the files being fetched,
+	// whose bytes are reserved till the fetch commits them. Their length is not the space
+	// they use
+	private ConcurrentHashMap<Path, Long> filesBeingWritten = new ConcurrentHashMap<Path, Long>();
+	
 	// constructor
 	public CacheMgr(){
 		
 	}
 	
-	// add the given FileCache object as the latest version of the given file path.  
-	public synchronized void setLatestVersion(String path, FileCache file){
-		LinkedList<FileCache> fileCacheVersions = new LinkedList<FileCache>();
-		if (fileVersions.containsKey(path)){
-		// Get all the versions of the file which exist in the cache
-			fileCacheVersions = fileVersions.get(path);
+	// add the given FileCache object as the latest version of the given file path.
+	// The version is added to the replacement policy as soon as it is registered, so that
+	// it can be evicted once it is not pinned, whether or not a client ever closes it
+	public void setLatestVersion(String path, FileCache file){
+		addVersion(path, file);
+		synchronized (lock) {
+			policy.onInsert(file, file.getFileSize());
+		}
+		if (journal != null)
+			journal.put(path, file, file.getFileSize());
+	}
+	
+	// add the version to the list of versions of the given file path
+	private void addVersion(String path, FileCache file){
+		// Get all the versions of the file which exist in the cache and
+		// add the latest version to the end of the list
+		fileVersions.computeIfAbsent(path, k -> new CopyOnWriteArrayList<FileCache>()).add(file);
+	}
+	
+	/*
+	 * Rebuild the cache state from the journal in the cache directory and journal the
+	 * changes from now on. Only the metadata of the files is checked, not their content.
+	 * If a journal was found, the cache files of the directory which are not journaled
+	 * (private copies, partial fetches, files of dropped entries) are deleted, since they
+	 * could never be evicted. Other files, and the files of a directory without journal,
+	 * are left alone.
+	 * Should be called once the cache directory and the replacement policy are set.
+	 * return 0 if success, else -1
+	 */
+	public int loadJournal(){
+		boolean journaled = new File(cacheDir, CacheJournal.JOURNAL_NAME).isFile();
+		journal = new CacheJournal(cacheDir);
+		List<CacheJournal.Entry> entries;
+		try {
+			entries = journal.load();
+		} catch (IOException e) {
+			// Error reading the journal. Continue without it
+			journal = null;
+			return -1;
+		}
+		// entries are in LRU order, cold first
+		ArrayList<FileCache> live = new ArrayList<FileCache>();
+		HashSet<Path> liveFiles = new HashSet<Path>();
+		for (CacheJournal.Entry e : entries) {
+			File f = new File(createPathName(cacheDir, e.cacheFileName));
+			if (!f.isFile() || f.length() != e.size) {
+				// the file was deleted or not completely written. Forget it
+				journal.remove(e.cacheFileName);
+				continue;
+			}
+			FileCache file = new FileCache(e.serverFileName, "READ");
+			file.setFilePath(e.cacheFileName);
+			file.setVersion(e.version);
+			file.setFileSize(e.size);
+			live.add(file);
+			liveFiles.add(f.toPath());
+			synchronized (lock) {
+				policy.onInsert(file, e.size);
+			}
+		}
+		// the versions of a file are listed oldest first, whatever the order of their use
+		ArrayList<FileCache> byVersion = new ArrayList<FileCache>(live);
+		byVersion.sort(Comparator.comparingLong(FileCache::getVersion));
+		for (FileCache file : byVersion)
+			addVersion(file.getServerFileName(), file);
+		// nothing is pinned yet. Only the latest versions are kept
+		for (String path : fileVersions.keySet())
+			retireOldVersions(path);
+		
+		if (journaled)
+			deleteUnjournaledFiles(liveFiles);
+		reconcileUsedSpace();
+		return 0;
+	}
+	
+	// delete the cache files of the cache directory which are not in the given set
+	private void deleteUnjournaledFiles(HashSet<Path> liveFiles){
+		try (Stream<Path> files = Files.walk(Paths.get(cacheDir))) {
+			files.filter(Files::isRegularFile)
+					.filter(p -> CACHE_FILE_NAME.matcher(p.getFileName().toString()).matches())
+					.filter(p -> !liveFiles.contains(p.normalize()))
+					.forEach(p -> p.toFile().delete());
+		} catch (IOException | UncheckedIOException e) {
+			// Error walking the cache directory. The files are kept
 		}
-		// add the latest version to the end of the file
-		fileCacheVersions.add(file);			
-		// update the map with the new list
-		fileVersions.put(path, fileCacheVersions);
 	}
 	
 	// return the cache dir
@@ -79,43 +193,42 @@ public class CacheMgr {
 
 		// get normalized absolute path and set the cache directory
 		this.cacheDir = Paths.get(cacheDir).toAbsolutePath().normalize().toString();
+		// initialize the used space with the files already in the directory
+		reconcileUsedSpace();
 		return 0;
 	}
 	
 	
 	// check if the file is in the cache
 	// return the latest version of the file if found.
-	public synchronized FileCache isFileInCache(String fileName){
-		if (fileVersions.containsKey(fileName)) {
-			try {
-				
-				int size = fileVersions.get(fileName).size();
-				int i = size - 1;
-				LinkedList<FileCache> versions = fileVersions.get(fileName);
-				while(i >= 0){
-					// only return the master copy of the file.
-					// private copy created for write should not be returned, because they would be
-					// deleted after they are written to.
-					String latestFile = versions.get(i).getFilePath();
-					if (latestFile.endsWith("_w")){
-						i--;
-						continue;
-					}
-					else
-						break;
-				}
-				// version found
-				if (i>=0)
-					return versions.get(i);
-				else
-					return null;
-			} catch (NoSuchElementException e) {
-				// file has no versions
-				return null;
-			}
-		} else
+	public FileCache isFileInCache(String fileName){
+		CopyOnWriteArrayList<FileCache> versions = fileVersions.get(fileName);
+		if (versions == null)
 			// file has no versions
 			return null;
+		
+		// work on a snapshot of the versions. The list may be updated concurrently
+		FileCache[] snapshot = versions.toArray(new FileCache[0]);
+		for (int i = snapshot.length - 1; i >= 0; i--) {
+			// only return the master copy of the file.
+			// private copy created for write should not be returned, because they would be
+			// deleted after they are written to.
+			if (!snapshot[i].getFilePath().endsWith("_w"))
+				return snapshot[i];
+		}
+		// file has no versions
+		return null;
+	}
+	
+	// get the latest version of every file in the cache
+	public List<FileCache> getLatestVersions(){
+		ArrayList<FileCache> latest = new ArrayList<FileCache>();
+		for (String fileName : fileVersions.keySet()) {
+			FileCache file = isFileInCache(fileName);
+			if (file != null)
+				latest.add(file);
+		}
+		return latest;
 	}
 	
 	// get the size of the cache
@@ -129,150 +242,320 @@ public class CacheMgr {
 	}
 	
 	// get the total used space in the cache.
-	// this is the sum of all the files in the cache
-	public synchronized long getUsedSpace(){
-		File[] files = new File(cacheDir).listFiles();
+	// this is the sum of all the files in the cache, kept up to date by the paths
+	// which add or remove bytes from the cache
+	public long getUsedSpace(){
+		return usedSpace.get();
+	}
+	
+	// recompute the used space from the files on disk and correct the counter.
+	// The files being written are counted with the space committed for them, so the
+	// bytes still reserved for them are not counted twice.
+	// Updates made while the directory is being walked may be counted twice or
+	// missed; such drift is corrected on the next run.
+	public long reconcileUsedSpace(){
 		long size = 0L;
-		for(int i=0;i<files.length;i++)
-			size+= files[i].length();
+		try (Stream<Path> files = Files.walk(Paths.get(cacheDir))) {
+			// the journal is not part of the cached files
+			size = files.filter(Files::isRegularFile)
+					.filter(p -> !p.getFileName().toString().startsWith(CacheJournal.JOURNAL_NAME))
+					.mapToLong(p -> filesBeingWritten.getOrDefault(p.normalize(), p.toFile().length())).sum();
+		} catch (IOException | UncheckedIOException e) {
+			// Error walking the cache directory. Keep the current counter
+			return getUsedSpace();
+		}
+		usedSpace.set(size);
 		return size;
 	}
+	
+	// start a background thread which reconciles the used space every period milliseconds
+	public void startReconciler(long period){
+		ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cache-reconciler");
+			t.setDaemon(true);
+			return t;
+		});
+		reconciler.scheduleWithFixedDelay(this::reconcileUsedSpace, period, period, TimeUnit.MILLISECONDS);
+	}
 
-	// remove the file from the use list. Decrease the counter by 1.
-	// if counter reaches 0, remove the entry for the file
-	public synchronized void removeFileInUse(String path){
-		int counter = filesInUse.get(path);
-		counter -= 1;
-		if (counter == 0){
-			filesInUse.remove(path);
+	/*
+	 * Pin a version of a file for a client. A pinned version is neither evicted nor
+	 * deleted till it is released (releaseVersion).
+	 * return false if the version is no longer in the cache
+	 */
+	public boolean pinVersion(FileCache file){
+		boolean[] pinned = new boolean[1];
+		filesInUse.compute(file.getFilePath(), (k, counter) -> {
+			if (findVersion(file) == null)
+				return counter;
+			pinned[0] = true;
+			return counter == null ? 1 : counter + 1;
+		});
+		return pinned[0];
+	}
+	
+	// release a version pinned by a client. The last release of a version which is no
+	// longer the latest version of its file deletes it
+	public void releaseVersion(FileCache file){
+		FileCache[] superseded = new FileCache[1];
+		filesInUse.computeIfPresent(file.getFilePath(), (k, counter) -> {
+			if (counter > 1)
+				return counter - 1;
+			FileCache version = findVersion(file);
+			if (version != null && !isLatest(version)) {
+				fileVersions.get(version.getServerFileName()).remove(version);
+				superseded[0] = version;
+			}
+			return null;
+		});
+		if (superseded[0] != null)
+			dispose(superseded[0]);
+	}
+	
+	// delete the versions of the file older than the latest one which are not pinned.
+	// The pinned ones are deleted by their last release
+	public void retireOldVersions(String path){
+		CopyOnWriteArrayList<FileCache> versions = fileVersions.get(path);
+		if (versions == null)
 			return;
+		for (FileCache version : versions) {
+			if (!isLatest(version) && unlinkVersion(version))
+				dispose(version);
 		}
-		filesInUse.put(path, counter);
 	}
 	
-	// remove file from the LRU
-	public synchronized void removeFileFromLRU(FileCache file){
-		fileUseList.remove(file);
+	// find the version in the version map which is stored in the cache file of the given object.
+	// Versions are identified by their cache file, not by the FileCache object
+	public FileCache findVersion(FileCache file){
+		CopyOnWriteArrayList<FileCache> versions = fileVersions.get(file.getServerFileName());
+		if (versions == null)
+			return null;
+		for (FileCache version : versions) {
+			if (version.getFilePath().equals(file.getFilePath()))
+				return version;
+		}
+		return null;
 	}
 	
+	// check whether the version is the latest version of its file
+	private boolean isLatest(FileCache version){
+		return isFileInCache(version.getServerFileName()) == version;
+	}
 	
-	// mark file as MRU (most recently used).
-	// Do the operation only if the file is not in use currently
-	public synchronized void markFileAsMRU(FileCache file){
-		int size = fileUseList.size();boolean flag = false;
-		for(int i = 0; i < size; i++){
-			//file exists in LRU
-			if (fileUseList.get(i).getFilePath().compareTo(file.getFilePath()) == 0){
-				// remove the file from LRU
-				fileUseList.remove(i);
-				// add the file to the end of the list
-				fileUseList.add(file);
-				flag = true;
-				break;
+	// remove a version which is not pinned from the version map. The version is looked up
+	// by its cache file, so any object of the same cache file (e.g. the one of the policy) unlinks it.
+	// return false if the version is pinned, true if it can be deleted
+	private boolean unlinkVersion(FileCache version){
+		boolean[] unlinked = new boolean[1];
+		filesInUse.compute(version.getFilePath(), (k, counter) -> {
+			if (counter == null) {
+				FileCache registered = findVersion(version);
+				if (registered != null)
+					fileVersions.get(registered.getServerFileName()).remove(registered);
+				unlinked[0] = true;
 			}
+			return counter;
+		});
+		return unlinked[0];
+	}
+	
+	// delete the cache file of a version removed from the version map
+	private void dispose(FileCache version){
+		removeFileFromLRU(version);
+		File f = new File(createPathName(cacheDir, version.getFilePath()));
+		long size = f.length();
+		if (f.delete())
+			usedSpace.addAndGet(-size);
+	}
+	
+	// remove the file from the use list. Decrease the counter by 1.
+	// if counter reaches 0, remove the entry for the file
+	public void removeFileInUse(String path){
+		// returning null from the remapping function removes the entry atomically
+		filesInUse.computeIfPresent(path, (k, counter) -> counter == 1 ? null : counter - 1);
+	}
+	
+	// remove file from the replacement policy
+	public void removeFileFromLRU(FileCache file){
+		synchronized (lock) {
+			policy.onRemove(file, false);
+		}
+		if (journal != null)
+			journal.remove(file.getFilePath());
+	}
+	
+	
+	// mark file as MRU (most recently used), i.e. record an access of the file with
+	// the replacement policy. Files which are not tracked (evicted, or never registered
+	// with setLatestVersion) are ignored
+	public void markFileAsMRU(FileCache file){
+		synchronized (lock) {
+			if (!policy.contains(file.getFilePath()))
+				return;
+			policy.onAccess(file);
+		}
+		if (journal != null)
+			journal.access(file.getFilePath());
+	}
+	
+	// set the replacement policy by name.
+	// return 0 if success, else -1
+	public int setEvictionPolicy(String name) {
+		EvictionPolicy policy;
+		switch (name) {
+		case "lru":
+			policy = new LruPolicy();
+			break;
+		case "lfu":
+			policy = new LfuPolicy();
+			break;
+		case "arc":
+			policy = new ArcPolicy();
+			break;
+		case "gdsf":
+			policy = new GdsfPolicy();
+			break;
+		default:
+			// Unknown policy
+			return -1;
+		}
+		synchronized (lock) {
+			this.policy = policy;
 		}
-		// LRU list is empty or file does not exist in LRU. Add it to the end of the list
-		if (!flag)
-			fileUseList.add(file);
+		return 0;
+	}
+	
+	// record an open served from the cache
+	public void recordHit() {
+		hits.incrementAndGet();
+	}
+	
+	// record an open which fetched the given number of bytes from the server
+	public void recordMiss(long bytes) {
+		misses.incrementAndGet();
+		bytesFetched.addAndGet(bytes);
+	}
+	
+	// return the cache statistics as a printable string
+	public String getStats() {
+		long nrOfHits = hits.get();
+		long opens = nrOfHits + misses.get();
+		double hitRatio = opens == 0 ? 0 : (double) nrOfHits / opens;
+		return String.format("policy=%s hits=%d misses=%d hitRatio=%.4f bytesFetched=%d evictions=%d bytesEvicted=%d",
+				policy.getName(), nrOfHits, misses.get(), hitRatio, bytesFetched.get(), evictions.get(), bytesEvicted.get());
 	}
 	
 	
 	// delete the file from the cache
-	public synchronized void deleteFile(String path){
+	public void deleteFile(String path){
 		File f = new File(createPathName(cacheDir, path));
-		f.delete();
+		long size = f.length();
+		if (f.delete())
+			usedSpace.addAndGet(-size);
+		if (journal != null)
+			journal.remove(path);
 	}
 	
 	
 	// check if the file is currently in use or not.
-	public synchronized int fileInUse(String path){
-		if (filesInUse.containsKey(path))
-			return filesInUse.get(path);
-		else
-			return 0;
+	public int fileInUse(String path){
+		return filesInUse.getOrDefault(path, 0);
 	}
 	
 	
 	// add the file to the usage list. Increase counter by 1
-	public synchronized void addFileInUse(String path){
-		if(!filesInUse.containsKey(path))
-			filesInUse.put(path, 1);
-		else
-			filesInUse.put(path, filesInUse.get(path)+1);
+	public void addFileInUse(String path){
+		filesInUse.merge(path, 1, Integer::sum);
 	}
 	
 	
 	/**
-	 * check and make space in the cache
+	 * Reserve space in the cache, evicting files if required. Bytes added to the cache are
+	 * first reserved, then committed once written (commitSpace) and the unused part of the
+	 * reservation is released (releaseSpace). Since used + reserved space never exceeds the
+	 * cache size, concurrent writers can work outside any lock without over-committing the cache.
 	 * @param reqSpace		: the space required by the file in the cache
 	 * @param path			: file name
-	 * @param filesInUse	: files currently in use by the Proxy. These files cannot be evicted
 	 * @param privateCopy	: file is a private copy	
-	 * @return				: true if the space was made in the cache. False otherwise
+	 * @return				: true if the space was reserved in the cache. False otherwise
 	 * 
 	 */
-	public synchronized boolean checkAndMakeSpace(long reqSpace, String path, String newPath, boolean privateCopy){
+	public boolean reserveSpace(long reqSpace, String path, boolean privateCopy){
 		// total space required by the file exceeds the cache size. Return false.
 		if (cacheSize < reqSpace){
 			return false;
 		}
 		
 		synchronized (lock) {
-			int index = 0;
-			long freeSpace = cacheSize-getUsedSpace();
+			long freeSpace = cacheSize - getUsedSpace() - reservedSpace;
 			
 			while(freeSpace < reqSpace){
-				// cache has some free space
-				// the whole LRU has been scanned but still space is not made. Return false
-				if (index > fileUseList.size() - 1){
+				// get the next victim from the policy.
+				// if the LRU file is a version of the file of the private copy, do not delete it
+				// This is because the write from master copy is under progress.
+				// Files currently in use cannot be deleted either
+				FileCache lruFile = policy.selectVictim(victim ->
+						!(victim.getServerFileName().compareTo(path) == 0 && privateCopy)
+						&& !filesInUse.containsKey(victim.getFilePath()));
+				
+				// no file can be evicted but still space is not made. Return false
+				if (lruFile == null){
 					return false;
 				}
 				
-				// get the LRU file from the list. This would be at index 0
-				FileCache lruFile = fileUseList.get(index);
-				
-				// if the LRU file is the master copy and the given file is a private copy, do not delete it
-				// This is because the write from master copy is under progress
-				if (lruFile.getFilePath().compareTo(path) == 0 && privateCopy){
-					index++;
+				// delete the victim and free some space in the cache. A victim pinned since it
+				// was selected stays in the policy; it is skipped by the next selection
+				if (!unlinkVersion(lruFile))
 					continue;
-				}
-				
-				// if the LRU file is not in use currently, delete it and free some space in the cache
-				if(!filesInUse.contains(lruFile.getFilePath())){	
-					// remove file from LRU list
-					fileUseList.remove(lruFile);
-					File f = new File(createPathName(cacheDir, lruFile.getFilePath()));
-					long spaceFreed = f.length();
+				policy.onRemove(lruFile, true);
+				if (journal != null)
+					journal.remove(lruFile.getFilePath());
+				File f = new File(createPathName(cacheDir, lruFile.getFilePath()));
+				long spaceFreed = f.length();
+				if (f.delete()) {
 					freeSpace += spaceFreed;
-					f.delete();
-					// Remove the LRU file from the list of versions maintained for the file
-					fileVersions.get(lruFile.getServerFileName()).remove(lruFile);
+					usedSpace.addAndGet(-spaceFreed);
+					evictions.incrementAndGet();
+					bytesEvicted.addAndGet(spaceFreed);
 				}
-				else{
-					// file is currently in use. Try next LRU file
-					index++;
-				}	
 			}
+			reservedSpace += reqSpace;
 		}
 		return true;
 	}
 	
-	// create a private copy for the given source file
-	public synchronized void createPrivateCopy(File source, File dest) throws FileNotFoundException, IOException {
-	    FileInputStream is = null;
-	    FileOutputStream os = null;
-	    is = new FileInputStream(source.getAbsolutePath());
-	    byte[] buffer = new byte[1024*1024];
-	    int length;
-	    os = new FileOutputStream(dest.getAbsolutePath(),true);
-	    while ((length = is.read(buffer)) > 0) {
-	    	os.write(buffer, 0, length);
-	    }
-	    is.close();
-    	os.close();
+	// move the given number of reserved bytes to the used space, once they are written to the cache
+	public void commitSpace(long bytes){
+		synchronized (lock) {
+			reservedSpace -= bytes;
+			usedSpace.addAndGet(bytes);
+		}
+	}
+	
+	// record the space committed for a file being written to the cache (open private copy,
+	// or file being fetched)
+	public void setWrittenSpace(File file, long bytes){
+		filesBeingWritten.put(file.toPath().toAbsolutePath().normalize(), bytes);
 	}
 	
+	// forget the space of a file once it is written (or deleted). Its length is then its size
+	public void removeWrittenSpace(File file){
+		filesBeingWritten.remove(file.toPath().toAbsolutePath().normalize());
+	}
+	
+	// give back committed bytes which were removed from the cache
+	public void freeSpace(long bytes){
+		usedSpace.addAndGet(-bytes);
+	}
+	
+	// give back reserved bytes which were not written to the cache
+	public void releaseSpace(long bytes){
+		if (bytes <= 0)
+			return;
+		synchronized (lock) {
+			reservedSpace -= bytes;
+		}
+	}
 	
 	/*
 	 * creates file pathname and return normalized pathname. if absolute file name is given
@@ -0,0 +1,44 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Accounting of the space of the cache (CacheMgr): reservations, commits and the
+ * reconciliation of the used space with the files on disk.
+ */
+
+public class CacheSpaceTest {
+
+	static String dir = "cache_space";
+
+	// the bytes of a file being fetched are reserved till they are committed, and are not
+	// counted as used by a reconciliation in the meantime
+	@Test
+	public void fileBeingFetchedCountedOnce() throws IOException {
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "a_v1"), new byte[1000]);
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(10000);
+		Assert.assertEquals(1000, mgr.getUsedSpace());
+
+		File f = new File(dir, "b_v1");
+		Assert.assertTrue(mgr.reserveSpace(4000, "b", false));
+		mgr.setWrittenSpace(f, 0);
+		Files.write(f.toPath(), new byte[3000]);
+		Assert.assertEquals(1000, mgr.reconcileUsedSpace());
+		Files.write(f.toPath(), new byte[4000]);
+		mgr.commitSpace(4000);
+		mgr.removeWrittenSpace(f);
+
+		Assert.assertEquals(5000, mgr.getUsedSpace());
+		Assert.assertEquals(5000, mgr.reconcileUsedSpace());
+		// the whole cache but the two files can be reserved
+		Assert.assertTrue(mgr.reserveSpace(5000, "c", false));
+		mgr.releaseSpace(5000);
+	}
+}
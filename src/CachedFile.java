@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * File of the cache opened by a client.
+ *
+ * Read only opens use the cache file of the version read (PlainCachedFile). Opens for
+ * write use an overlay on the version (OverlayCachedFile), so that the version is not
+ * copied before it is written to.
+ * The methods follow the semantics of RandomAccessFile. A file is used by one client only.
+ */
+
+public interface CachedFile {
+
+	// read up to buf.length bytes at the file pointer. return the number of bytes read,
+	// -1 if the file pointer is at or beyond the end of the file
+	public int read(byte[] buf) throws IOException;
+
+	// read bytes at the given position, without moving the file pointer.
+	// return the number of bytes read, -1 if the position is at or beyond the end of the file
+	public int read(ByteBuffer dst, long position) throws IOException;
+
+	// write the bytes at the file pointer. return the number of bytes written,
+	// ENOMEM if the cache does not have space for them
+	public int write(ByteBuffer src) throws IOException;
+
+	// get the file pointer
+	public long getFilePointer() throws IOException;
+
+	// set the file pointer
+	public void seek(long pos) throws IOException;
+
+	// get the length of the file
+	public long length() throws IOException;
+
+	// close the file
+	public void close() throws IOException;
+}
@@ -0,0 +1,84 @@
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Callback promises of the server on the files cached by the proxy (AFS style).
+ *
+ * 1. When a file is opened, the server promises to call back the proxy if the file
+ *    changes within the lease. While the promise holds, the latest cached version of
+ *    the file is opened without contacting the server.
+ * 2. The server breaks the promise (breakPromise) when a version of the file is
+ *    committed or the file is unlinked.
+ * 3. Versions and breaks are ordered by the version numbers of the server, so a promise
+ *    received after a break of a newer version (the replies may cross) is ignored.
+ *
+ * Changes to the files made by other means than the server, and breaks lost because the
+ * proxy was unreachable, are seen at the latest when the lease expires.
+ */
+
+public class CallbackPromises extends UnicastRemoteObject implements CacheCallback {
+
+	private static final long serialVersionUID = 1L;
+
+	// Promise on a file, or its break
+	private static class Promise {
+		long version;		// version promised, or the stamp of the break
+		long expiry;		// end of the lease (in milliseconds)
+		boolean broken;		// the file changed
+	}
+
+	// promises against the server file name
+	private final ConcurrentHashMap<String, Promise> promises = new ConcurrentHashMap<String, Promise>();
+	// statistics
+	private final AtomicLong opens = new AtomicLong();
+	private final AtomicLong breaks = new AtomicLong();
+
+	// constructor. Exports the object
+	public CallbackPromises() throws RemoteException {
+		super();
+	}
+
+	// record the promise of the server that the version is the latest of the file till expiry
+	public void promise(String path, long version, long expiry) {
+		promises.compute(path, (k, cur) -> {
+			// keep the newer version, or the break of a newer version
+			if (cur != null && cur.version > version)
+				return cur;
+			Promise p = new Promise();
+			p.version = version;
+			p.expiry = expiry;
+			return p;
+		});
+	}
+
+	// check whether the version is promised to be the latest of the file
+	public boolean isPromised(String path, long version) {
+		Promise p = promises.get(path);
+		return p != null && !p.broken && p.version == version && p.expiry > System.currentTimeMillis();
+	}
+
+	public void breakPromise(String path, long stamp) throws RemoteException {
+		breaks.incrementAndGet();
+		promises.compute(path, (k, cur) -> {
+			// the promise of the version committed (or of a newer version) holds
+			if (cur != null && cur.version >= stamp)
+				return cur;
+			Promise p = new Promise();
+			p.version = stamp;
+			p.broken = true;
+			return p;
+		});
+	}
+
+	// record an open served under a promise
+	public void recordOpen() {
+		opens.incrementAndGet();
+	}
+
+	// return the statistics of the promises as a printable string
+	public String getStats() {
+		return String.format("promisedOpens=%d promiseBreaks=%d", opens.get(), breaks.get());
+	}
+}
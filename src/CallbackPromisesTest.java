@@ -0,0 +1,54 @@
+import java.rmi.RemoteException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Promises of the server recorded by the proxy (CallbackPromises), whatever the order in
+ * which the promises and their breaks arrive.
+ */
+
+public class CallbackPromisesTest {
+
+	static final long LEASE = 30000;
+
+	// a promise holds till it is broken by a newer version, or expires
+	@Test
+	public void promiseAndBreak() throws RemoteException {
+		CallbackPromises promises = new CallbackPromises();
+		long expiry = System.currentTimeMillis() + LEASE;
+		promises.promise("a", 5, expiry);
+		Assert.assertTrue(promises.isPromised("a", 5));
+		Assert.assertFalse(promises.isPromised("a", 4));
+		Assert.assertFalse(promises.isPromised("b", 5));
+		promises.breakPromise("a", 6);
+		Assert.assertFalse(promises.isPromised("a", 5));
+
+		promises.promise("c", 1, System.currentTimeMillis() - 1);
+		Assert.assertFalse(promises.isPromised("c", 1));
+	}
+
+	// the break of a newer version arrives before the promise of an older one
+	@Test
+	public void breakBeforePromise() throws RemoteException {
+		CallbackPromises promises = new CallbackPromises();
+		promises.breakPromise("a", 6);
+		promises.promise("a", 5, System.currentTimeMillis() + LEASE);
+		Assert.assertFalse(promises.isPromised("a", 5));
+		// the promise of the version committed holds
+		promises.promise("a", 6, System.currentTimeMillis() + LEASE);
+		Assert.assertTrue(promises.isPromised("a", 6));
+	}
+
+	// the break of the version committed arrives after the promise of that version, made
+	// between the commit and its break
+	@Test
+	public void promiseBeforeBreakOfSameVersion() throws RemoteException {
+		CallbackPromises promises = new CallbackPromises();
+		promises.promise("a", 6, System.currentTimeMillis() + LEASE);
+		promises.breakPromise("a", 6);
+		Assert.assertTrue(promises.isPromised("a", 6));
+		promises.breakPromise("a", 7);
+		Assert.assertFalse(promises.isPromised("a", 6));
+	}
+}
@@ -0,0 +1,338 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * rsync style delta encoding of a file against an older version of it.
+ *
+ * 1. The holder of the old version computes the signature of its blocks: a rolling
+ *    weak checksum and a strong hash (MD5) of every whole block (signature()).
+ * 2. The holder of the new version slides a window over the new file and looks up the
+ *    weak checksum of the window in the signature, confirming a match with the strong
+ *    hash. It produces a list of ops: literal runs of bytes and references to runs of
+ *    blocks of the old version (encode()). The ops are produced in pages.
+ * 3. The holder of the old version rebuilds the new file by applying the pages of ops
+ *    in order (apply()).
+ */
+
+public class DeltaSync {
+
+	// size of the blocks of the signature
+	public static final int BLOCK_SIZE = 8 * 1024;
+	// maximum size of a page of ops
+	public static final int PAGE_SIZE = 1024 * 1024;
+	// maximum length of a literal op
+	private static final int MAX_LITERAL = 64 * 1024;
+	// tags of the ops
+	private static final byte LITERAL = 0;
+	private static final byte COPY = 1;
+
+	// signature of the whole blocks of a file
+	public static class Signature implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int blockSize;			// size of the blocks
+		int[] weak;				// rolling checksum of every block
+		byte[] strong;			// MD5 of every block, 16 bytes each
+	}
+
+	// receives the pages of ops as they are produced
+	public interface PageSink {
+		public void send(byte[] page) throws IOException;
+	}
+
+	// source of the bytes of the file being encoded
+	public interface Source {
+		public int read(ByteBuffer dst, long position) throws IOException;
+	}
+
+	/*
+	 * Compute the signature of size bytes of the file
+	 */
+	public static Signature signature(FileChannel in, long size) throws IOException {
+		int n = (int) (size / BLOCK_SIZE);
+		Signature sig = new Signature();
+		sig.blockSize = BLOCK_SIZE;
+		sig.weak = new int[n];
+		sig.strong = new byte[n * 16];
+		MessageDigest md5 = md5();
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+		for (int i = 0; i < n; i++) {
+			block.clear();
+			readFully((dst, pos) -> in.read(dst, pos), block, (long) i * BLOCK_SIZE);
+			byte[] b = block.array();
+			sig.weak[i] = weakChecksum(b, 0, BLOCK_SIZE);
+			System.arraycopy(md5.digest(b), 0, sig.strong, i * 16, 16);
+		}
+		return sig;
+	}
+
+	// check that a signature received from a peer can be used: blocks of BLOCK_SIZE bytes,
+	// with a weak checksum and a strong hash for each of them
+	public static boolean isValid(Signature sig) {
+		return sig != null && sig.blockSize == BLOCK_SIZE && sig.weak != null && sig.strong != null
+				&& sig.strong.length == (long) sig.weak.length * 16;
+	}
+
+	// index the blocks of the signature by their weak checksum
+	public static HashMap<Integer, List<Integer>> index(Signature sig) {
+		HashMap<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < sig.weak.length; i++)
+			blocks.computeIfAbsent(sig.weak[i], k -> new ArrayList<Integer>(1)).add(i);
+		return blocks;
+	}
+
+	/*
+	 * Encode size bytes of the source as ops against the version of the signature.
+	 * The pages of ops are sent to the sink in order. return the number of literal bytes
+	 */
+	public static long encode(Source in, long size, Signature sig, PageSink sink) throws IOException {
+		if (!isValid(sig))
+			throw new IOException("Invalid signature");
+		return encode(in, size, sig, index(sig), sink);
+	}
+
+	/*
+	 * Encode size bytes of the source as ops against the version of the signature,
+	 * whose blocks are already indexed (see index()).
+	 * The pages of ops are sent to the sink in order. return the number of literal bytes
+	 */
+	public static long encode(Source in, long size, Signature sig, HashMap<Integer, List<Integer>> blocks,
+			PageSink sink) throws IOException {
+		if (!isValid(sig))
+			throw new IOException("Invalid signature");
+		// the blocks referred to by the ops are BLOCK_SIZE long (see apply())
+		int bs = BLOCK_SIZE;
+
+		Encoder out = new Encoder(sink);
+		MessageDigest md5 = md5();
+		// window of the new file. buf holds the bytes from bufStart, the window starts at pos.
+		// The bytes from litStart to pos matched no block and are sent as literals
+		byte[] buf = new byte[4 * Math.max(bs, MAX_LITERAL)];
+		long bufStart = 0;
+		int bufLen = 0;
+		long pos = 0, litStart = 0;
+		int a = 0, b = 0;			// rolling checksum of the window
+		boolean rolled = false;		// checksum is valid for the window at pos
+
+		while (pos < size) {
+			int off = (int) (pos - bufStart);
+			// keep a whole window in the buffer
+			if (off + bs > bufLen && bufStart + bufLen < size) {
+				// the literals before the window are dropped from the buffer
+				out.literal(buf, (int) (litStart - bufStart), (int) (pos - litStart));
+				litStart = pos;
+				System.arraycopy(buf, off, buf, 0, bufLen - off);
+				bufLen -= off;
+				bufStart = pos;
+				off = 0;
+				ByteBuffer dst = ByteBuffer.wrap(buf, bufLen, (int) Math.min(buf.length - bufLen, size - bufStart - bufLen));
+				bufLen += readFully(in, dst, bufStart + bufLen);
+			}
+			if (pos + bs > size || blocks.isEmpty()) {
+				// the rest of the file is shorter than a block, or there is no block to match.
+				// The bytes in the buffer are literals
+				pos = bufStart + bufLen;
+				continue;
+			}
+
+			if (!rolled) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < bs; i++) {
+					a += buf[off + i] & 0xff;
+					b += (bs - i) * (buf[off + i] & 0xff);
+				}
+				a &= 0xffff;
+				b &= 0xffff;
+				rolled = true;
+			}
+
+			int match = -1;
+			List<Integer> candidates = blocks.get(a | (b << 16));
+			if (candidates != null) {
+				md5.update(buf, off, bs);
+				byte[] digest = md5.digest();
+				for (int i : candidates) {
+					if (Arrays.equals(Arrays.copyOfRange(sig.strong, i * 16, i * 16 + 16), digest)) {
+						match = i;
+						break;
+					}
+				}
+			}
+
+			if (match >= 0) {
+				out.literal(buf, (int) (litStart - bufStart), (int) (pos - litStart));
+				out.copy(match);
+				pos += bs;
+				litStart = pos;
+				rolled = false;
+			} else {
+				// no match. Roll the window by one byte
+				int old = buf[off] & 0xff;
+				pos++;
+				if (pos + bs <= size && off + bs < bufLen) {
+					int next = buf[off + bs] & 0xff;
+					a = (a - old + next) & 0xffff;
+					b = (b - bs * old + a) & 0xffff;
+				} else {
+					rolled = false;
+				}
+			}
+		}
+		out.literal(buf, (int) (litStart - bufStart), (int) (pos - litStart));
+		out.finish();
+		return out.literalBytes;
+	}
+
+	/*
+	 * Apply a page of ops, writing the bytes of the new file from the given position.
+	 * The blocks referred to are read from the old version.
+	 * return the position after the bytes written
+	 */
+	public static long apply(byte[] page, FileChannel base, FileChannel out, long position) throws IOException {
+		DataInputStream ops = new DataInputStream(new ByteArrayInputStream(page));
+		while (ops.available() > 0) {
+			byte tag = ops.readByte();
+			if (tag == LITERAL) {
+				byte[] bytes = new byte[ops.readInt()];
+				ops.readFully(bytes);
+				ByteBuffer src = ByteBuffer.wrap(bytes);
+				while (src.hasRemaining())
+					out.write(src, position + src.position());
+				position += bytes.length;
+			} else if (tag == COPY) {
+				long from = (long) ops.readInt() * BLOCK_SIZE;
+				long length = (long) ops.readInt() * BLOCK_SIZE;
+				out.position(position);
+				for (long done = 0; done < length; ) {
+					long n = base.transferTo(from + done, length - done, out);
+					if (n <= 0)
+						throw new IOException("Block beyond the end of the version at " + (from + done));
+					done += n;
+				}
+				position += length;
+			} else {
+				throw new IOException("Invalid op " + tag);
+			}
+		}
+		return position;
+	}
+
+	// rolling checksum of the bytes
+	private static int weakChecksum(byte[] buf, int off, int len) {
+		int a = 0, b = 0;
+		for (int i = 0; i < len; i++) {
+			a += buf[off + i] & 0xff;
+			b += (len - i) * (buf[off + i] & 0xff);
+		}
+		return (a & 0xffff) | ((b & 0xffff) << 16);
+	}
+
+	// read till the buffer is full or the end of the file. return the number of bytes read
+	private static int readFully(Source in, ByteBuffer dst, long position) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int n = in.read(dst, position + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform supports MD5
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// writes the ops in pages. Literal bytes are merged into runs, references to
+	// consecutive blocks into a single op
+	private static class Encoder {
+		private PageSink sink;
+		private ByteArrayOutputStream page = new ByteArrayOutputStream();
+		private DataOutputStream ops = new DataOutputStream(page);
+		private ByteArrayOutputStream literal = new ByteArrayOutputStream();
+		private int copyFrom = -1, copyCount = 0;	// pending reference
+		long literalBytes = 0;
+
+		Encoder(PageSink sink) {
+			this.sink = sink;
+		}
+
+		void literal(byte[] buf, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+			flushCopy();
+			while (len > 0) {
+				int n = Math.min(len, MAX_LITERAL - literal.size());
+				literal.write(buf, off, n);
+				off += n;
+				len -= n;
+				literalBytes += n;
+				if (literal.size() == MAX_LITERAL)
+					flushLiteral();
+			}
+		}
+
+		void copy(int block) throws IOException {
+			flushLiteral();
+			if (copyCount > 0 && copyFrom + copyCount == block) {
+				copyCount++;
+				return;
+			}
+			flushCopy();
+			copyFrom = block;
+			copyCount = 1;
+		}
+
+		void finish() throws IOException {
+			flushLiteral();
+			flushCopy();
+			if (page.size() > 0)
+				sink.send(page.toByteArray());
+		}
+
+		private void flushLiteral() throws IOException {
+			if (literal.size() == 0)
+				return;
+			ops.writeByte(LITERAL);
+			ops.writeInt(literal.size());
+			literal.writeTo(ops);
+			literal.reset();
+			flushPage();
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyCount == 0)
+				return;
+			ops.writeByte(COPY);
+			ops.writeInt(copyFrom);
+			ops.writeInt(copyCount);
+			copyCount = 0;
+			flushPage();
+		}
+
+		private void flushPage() throws IOException {
+			if (page.size() < PAGE_SIZE - MAX_LITERAL - 16)
+				return;
+			ops.flush();
+			sink.send(page.toByteArray());
+			page.reset();
+		}
+	}
+}
@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Delta encoding of a file against an older version of it (DeltaSync): the new version
+ * is rebuilt from the old one and the ops, with literals for the changed bytes only.
+ */
+
+public class DeltaSyncTest {
+
+	static String dir = "tests_delta";
+	static final int BS = DeltaSync.BLOCK_SIZE;
+
+	@BeforeClass
+	public static void setup() {
+		TestFiles.clean(dir);
+	}
+
+	// an unchanged file is sent as references to the blocks only
+	@Test
+	public void unchanged() throws IOException {
+		byte[] old = TestFiles.random(1, 10 * BS + 100);
+		Assert.assertEquals(100, roundTrip(old, old));
+	}
+
+	// without a whole block in the old version (empty signature), the file is sent as literals
+	@Test
+	public void emptySignature() throws IOException {
+		byte[] now = TestFiles.random(2, 3 * BS);
+		Assert.assertEquals(now.length, roundTrip(new byte[0], now));
+		Assert.assertEquals(now.length, roundTrip(TestFiles.random(3, BS - 1), now));
+	}
+
+	// appended bytes are the only literals
+	@Test
+	public void appended() throws IOException {
+		byte[] old = TestFiles.random(4, 8 * BS);
+		byte[] now = Arrays.copyOf(old, old.length + 5000);
+		System.arraycopy(TestFiles.random(5, 5000), 0, now, old.length, 5000);
+		Assert.assertEquals(5000, roundTrip(old, now));
+	}
+
+	// a modified byte costs at most a block
+	@Test
+	public void modified() throws IOException {
+		byte[] old = TestFiles.random(6, 8 * BS);
+		byte[] now = old.clone();
+		now[3 * BS + 17] ^= 1;
+		Assert.assertEquals(BS, roundTrip(old, now));
+	}
+
+	// bytes inserted in the middle shift the blocks after them, which still match
+	@Test
+	public void inserted() throws IOException {
+		byte[] old = TestFiles.random(7, 8 * BS);
+		byte[] now = new byte[old.length + 10];
+		System.arraycopy(old, 0, now, 0, 4 * BS + 3);
+		System.arraycopy(old, 4 * BS + 3, now, 4 * BS + 13, old.length - 4 * BS - 3);
+		Assert.assertTrue(roundTrip(old, now) <= BS + 10);
+	}
+
+	// truncated and empty new versions
+	@Test
+	public void truncated() throws IOException {
+		byte[] old = TestFiles.random(8, 8 * BS);
+		Assert.assertEquals(0, roundTrip(old, Arrays.copyOf(old, 5 * BS)));
+		Assert.assertEquals(0, roundTrip(old, new byte[0]));
+	}
+
+	// a new version larger than a page is sent in many pages
+	@Test
+	public void manyPages() throws IOException {
+		byte[] old = TestFiles.random(9, 2 * BS);
+		byte[] now = TestFiles.random(10, 3 * DeltaSync.PAGE_SIZE);
+		System.arraycopy(old, 0, now, DeltaSync.PAGE_SIZE, old.length);
+		List<byte[]> pages = new ArrayList<byte[]>();
+		Assert.assertEquals(now.length - old.length, roundTrip(old, now, pages));
+		Assert.assertTrue(pages.size() > 1);
+	}
+
+	// a malformed signature of a peer is refused instead of being encoded against
+	@Test
+	public void invalidSignature() throws IOException {
+		Path base = Paths.get(dir, "base");
+		Files.write(base, TestFiles.random(11, 4 * BS));
+		DeltaSync.Signature sig;
+		try (FileChannel in = FileChannel.open(base, StandardOpenOption.READ)) {
+			sig = DeltaSync.signature(in, in.size());
+		}
+		Assert.assertTrue(DeltaSync.isValid(sig));
+		Assert.assertFalse(DeltaSync.isValid(null));
+
+		sig.blockSize = 0;
+		assertRefused(sig);
+		sig.blockSize = BS;
+		sig.strong = Arrays.copyOf(sig.strong, sig.strong.length - 16);
+		assertRefused(sig);
+		sig.strong = null;
+		assertRefused(sig);
+	}
+
+	private static void assertRefused(DeltaSync.Signature sig) {
+		Assert.assertFalse(DeltaSync.isValid(sig));
+		byte[] now = TestFiles.random(12, 2 * BS);
+		try {
+			DeltaSync.encode((buf, position) -> {
+				int n = (int) Math.min(buf.remaining(), now.length - position);
+				buf.put(now, (int) position, n);
+				return n;
+			}, now.length, sig, page -> {});
+			Assert.fail("signature not refused");
+		} catch (IOException e) {
+			// refused
+		}
+	}
+
+	// encode the new version against the old one, apply the ops to the old one and check
+	// the result. return the number of literal bytes
+	private static long roundTrip(byte[] old, byte[] now) throws IOException {
+		return roundTrip(old, now, new ArrayList<byte[]>());
+	}
+
+	private static long roundTrip(byte[] old, byte[] now, List<byte[]> pages) throws IOException {
+		Path base = Paths.get(dir, "base");
+		Path out = Paths.get(dir, "out");
+		Files.write(base, old);
+		Files.deleteIfExists(out);
+		try (FileChannel in = FileChannel.open(base, StandardOpenOption.READ);
+				FileChannel dst = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			DeltaSync.Signature sig = DeltaSync.signature(in, in.size());
+			long literals = DeltaSync.encode((buf, position) -> {
+				if (position >= now.length)
+					return -1;
+				int n = (int) Math.min(buf.remaining(), now.length - position);
+				buf.put(now, (int) position, n);
+				return n;
+			}, now.length, sig, page -> pages.add(page));
+			long position = 0;
+			for (byte[] page : pages) {
+				Assert.assertTrue(page.length <= DeltaSync.PAGE_SIZE + 64 * 1024);
+				position = DeltaSync.apply(page, in, dst, position);
+			}
+			Assert.assertEquals(now.length, position);
+			Assert.assertArrayEquals(now, Files.readAllBytes(out));
+			return literals;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+import java.util.function.Predicate;
+
+/**
+ * Cache replacement policy used by CacheMgr.
+ * 
+ * The policy only orders the files in the cache. CacheMgr decides whether a
+ * candidate can actually be evicted (file in use, master copy of a private copy
+ * being created) and deletes it from the disk.
+ * Files are identified by their cache file path (FileCache.getFilePath()).
+ * Implementations need not be thread safe; CacheMgr serializes the calls.
+ */
+
+public interface EvictionPolicy {
+	
+	// name of the policy
+	public String getName();
+	
+	// a file of the given size (in bytes) is added to the cache
+	public void onInsert(FileCache file, long size);
+	
+	// a file in the cache is accessed
+	public void onAccess(FileCache file);
+	
+	// a file is removed from the cache. evicted is true if the file was
+	// removed because it was selected as a victim
+	public void onRemove(FileCache file, boolean evicted);
+	
+	// check if the file is tracked by the policy
+	public boolean contains(String path);
+	
+	// return the best victim for which canEvict is true, null if there is none.
+	// The victim is not removed; CacheMgr calls onRemove once it is deleted.
+	public FileCache selectVictim(Predicate<FileCache> canEvict);
+}
@@ -0,0 +1,94 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Victims chosen by the replacement policies (EvictionPolicy).
+ */
+
+public class EvictionPolicyTest {
+
+	// the least recently used file is evicted
+	@Test
+	public void lru() {
+		EvictionPolicy policy = new LruPolicy();
+		FileCache a = file("a", 10), b = file("b", 10), c = file("c", 10);
+		insert(policy, a, b, c);
+		policy.onAccess(a);
+		Assert.assertSame(b, policy.selectVictim(f -> true));
+		// the files which cannot be evicted are skipped
+		Assert.assertSame(c, policy.selectVictim(f -> f != b));
+	}
+
+	// the least frequently used file is evicted, the oldest one on ties
+	@Test
+	public void lfu() {
+		EvictionPolicy policy = new LfuPolicy();
+		FileCache a = file("a", 10), b = file("b", 10), c = file("c", 10);
+		insert(policy, a, b, c);
+		policy.onAccess(a);
+		policy.onAccess(a);
+		policy.onAccess(b);
+		Assert.assertSame(c, policy.selectVictim(f -> true));
+		policy.onRemove(c, true);
+		Assert.assertFalse(policy.contains("c_v1"));
+		Assert.assertSame(b, policy.selectVictim(f -> true));
+	}
+
+	// a one-off scan does not push the files used twice out of the cache
+	@Test
+	public void arcScanResistant() {
+		EvictionPolicy policy = new ArcPolicy();
+		FileCache hot1 = file("hot1", 10), hot2 = file("hot2", 10);
+		insert(policy, hot1, hot2);
+		policy.onAccess(hot1);
+		policy.onAccess(hot2);
+		for (int i = 0; i < 100; i++) {
+			FileCache scanned = file("scan" + i, 10);
+			policy.onInsert(scanned, 10);
+			FileCache victim = policy.selectVictim(f -> true);
+			Assert.assertNotSame(hot1, victim);
+			Assert.assertNotSame(hot2, victim);
+			policy.onRemove(victim, true);
+		}
+		Assert.assertTrue(policy.contains("hot1_v1"));
+		Assert.assertTrue(policy.contains("hot2_v1"));
+	}
+
+	// a large file used as often as small files is evicted first
+	@Test
+	public void gdsfSizeAware() {
+		EvictionPolicy policy = new GdsfPolicy();
+		FileCache small = file("small", 1000), large = file("large", 100000000), other = file("other", 1000);
+		insert(policy, small, large, other);
+		Assert.assertSame(large, policy.selectVictim(f -> true));
+		policy.onRemove(large, true);
+		Assert.assertSame(small, policy.selectVictim(f -> true));
+		// the evicted files age the cache: a new large file still goes first
+		FileCache next = file("next", 100000000);
+		policy.onInsert(next, next.getFileSize());
+		Assert.assertSame(next, policy.selectVictim(f -> true));
+	}
+
+	// none of the files can be evicted
+	@Test
+	public void noVictim() {
+		EvictionPolicy[] policies = { new LruPolicy(), new LfuPolicy(), new ArcPolicy(), new GdsfPolicy() };
+		for (EvictionPolicy policy : policies) {
+			insert(policy, file("a", 10), file("b", 10));
+			Assert.assertNull(policy.getName(), policy.selectVictim(f -> false));
+		}
+	}
+
+	private static void insert(EvictionPolicy policy, FileCache... files) {
+		for (FileCache file : files)
+			policy.onInsert(file, file.getFileSize());
+	}
+
+	private static FileCache file(String name, long size) {
+		FileCache file = new FileCache(name, "READ");
+		file.setFilePath(name + "_v1");
+		file.setVersion(1);
+		file.setFileSize(size);
+		return file;
+	}
+}
@@ -1,15 +1,20 @@
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author vsaravag
  * Class to handle the file in the cache
  * Each file in the cache will have an associated FileCache object
+ * 
+ * The object is sent between the proxy and the server in a compact Externalizable
+ * form: only the fields are written, without the class descriptors of the fields.
  */
 
-public class FileCache implements Serializable, Cloneable {
+public class FileCache implements Externalizable, Cloneable {
 	
 	private String fileName;		
 	private String serverFileName;		// the name with which the file is stored on server
@@ -17,11 +22,17 @@ public class FileCache implements Serializable, Cloneable {
 	private String fileMode;			// mode in which the file is opened
 	private long fileSize;				// size of the file
 	private int nrOfBlocks;				// number of blocks required to get the file
-	private long lastModifiedAt;		// time the file was last modified on server
+	private long version;				// version of the file on the server
 	private boolean isDir = false;		// is file a directory
 	private boolean err = false;		// any error while writing to the file
-	// map to associate blocks with their size
-	private ConcurrentHashMap<Integer, Integer> blockSize = new ConcurrentHashMap<Integer, Integer>();
+	private long sessionId = 0;			// handle of the read session opened on the server
+	private long clientId = 0;			// callback id of the proxy, 0 if it has no callback
+	private long lease = 0;				// time (in milliseconds) the server promises to call back
+										// the proxy when the file changes, 0 if no promise
+	
+	// Constructor required by Externalizable
+	public FileCache(){
+	}
 	
 	// Constructor. Sets the file name, server file name and mode
 	public FileCache(String path, String mode){
@@ -81,24 +92,14 @@ public class FileCache implements Serializable, Cloneable {
 		this.nrOfBlocks = nrOfBlocks;
 	}
 
-	// get the blockSize map
-	public ConcurrentHashMap<Integer, Integer> getBlockSize() {
-		return blockSize;
-	}
-
-	// set the blockSize map
-	public void setBlockSize(ConcurrentHashMap<Integer, Integer> blockSize) {
-		this.blockSize = blockSize;
+	// get the version of the file on the server
+	public long getVersion() {
+		return version;
 	}
 
-	// get the last modified
-	public long getLastModifiedAt() {
-		return lastModifiedAt;
-	}
-
-	// set the last modified
-	public void setLastModifiedAt(long lastModifiedAt) {
-		this.lastModifiedAt = lastModifiedAt;
+	// set the version of the file on the server
+	public void setVersion(long version) {
+		this.version = version;
 	}
 
 	// returns the isDir variable
@@ -131,4 +132,78 @@ public class FileCache implements Serializable, Cloneable {
 		this.serverFileName = serverFileName;
 	}
 
+	// get the handle of the read session
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	// set the handle of the read session
+	public void setSessionId(long sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	// get the callback id of the proxy
+	public long getClientId() {
+		return clientId;
+	}
+
+	// set the callback id of the proxy
+	public void setClientId(long clientId) {
+		this.clientId = clientId;
+	}
+
+	// get the time the server promises to call back the proxy when the file changes
+	public long getLease() {
+		return lease;
+	}
+
+	// set the time the server promises to call back the proxy when the file changes
+	public void setLease(long lease) {
+		this.lease = lease;
+	}
+
+	// write the fields of the object
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeString(out, fileName);
+		writeString(out, serverFileName);
+		writeString(out, fileMode);
+		out.writeInt(errorCode);
+		out.writeLong(fileSize);
+		out.writeInt(nrOfBlocks);
+		out.writeLong(version);
+		out.writeBoolean(isDir);
+		out.writeBoolean(err);
+		out.writeLong(sessionId);
+		out.writeLong(clientId);
+		out.writeLong(lease);
+	}
+
+	// read the fields of the object, in the order they are written
+	public void readExternal(ObjectInput in) throws IOException {
+		fileName = readString(in);
+		serverFileName = readString(in);
+		fileMode = readString(in);
+		errorCode = in.readInt();
+		fileSize = in.readLong();
+		nrOfBlocks = in.readInt();
+		version = in.readLong();
+		isDir = in.readBoolean();
+		err = in.readBoolean();
+		sessionId = in.readLong();
+		clientId = in.readLong();
+		lease = in.readLong();
+	}
+	
+	// write a string which may be null
+	private static void writeString(ObjectOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+	
+	// read a string written by writeString
+	private static String readString(ObjectInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
 }
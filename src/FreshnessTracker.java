@@ -0,0 +1,86 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Freshness of the files in the cache, for opens without validation by the server.
+ *
+ * 1. A cached version validated by the server (openSession) is considered fresh for its
+ *    TTL, and opened without contacting the server meanwhile.
+ * 2. The TTL of a file adapts to its history: it is a fraction (AGE_FACTOR) of the time
+ *    since the file was last seen to change. Files that rarely change get longer windows,
+ *    files written to often get shorter ones (down to no window right after a change).
+ * 3. The TTL never exceeds the configured maximum, which bounds the staleness of the
+ *    files opened.
+ */
+
+public class FreshnessTracker {
+
+	// fraction of the time since the last change used as the TTL
+	private static final double AGE_FACTOR = 0.1;
+
+	// Freshness of a file
+	private static class Freshness {
+		long version;		// version validated
+		long validatedAt;	// time (in milliseconds) of the last validation
+		long changedAt;		// time the file was last seen to change
+		long ttl;			// time the version is considered fresh after a validation
+	}
+
+	private final long maxTtl;	// maximum TTL (in milliseconds)
+	// freshness against the server file name
+	private final ConcurrentHashMap<String, Freshness> files = new ConcurrentHashMap<String, Freshness>();
+	// statistics
+	private final AtomicLong opens = new AtomicLong();
+	private final AtomicLong changes = new AtomicLong();
+
+	// constructor
+	public FreshnessTracker(long maxTtl) {
+		this.maxTtl = maxTtl;
+	}
+
+	// check whether the version of the file can be opened without validation
+	public boolean isFresh(String path, long version) {
+		Freshness f = files.get(path);
+		return f != null && f.version == version && System.currentTimeMillis() - f.validatedAt < f.ttl;
+	}
+
+	/*
+	 * Record the version of the file validated by the server at the given time (taken
+	 * before the validation was requested). A new version restarts the TTL of the file
+	 * from zero
+	 */
+	public void validated(String path, long version, long at) {
+		files.compute(path, (k, f) -> {
+			if (f != null && at < f.validatedAt)
+				// a later validation has been recorded already
+				return f;
+			if (f == null) {
+				// the history of the file is not known. It may have just changed
+				f = new Freshness();
+				f.changedAt = at;
+			} else if (f.version != version) {
+				f.changedAt = at;
+				changes.incrementAndGet();
+			}
+			f.version = version;
+			f.validatedAt = at;
+			f.ttl = Math.min(maxTtl, (long) ((at - f.changedAt) * AGE_FACTOR));
+			return f;
+		});
+	}
+
+	// forget the file (unlinked)
+	public void forget(String path) {
+		files.remove(path);
+	}
+
+	// record an open of a fresh version
+	public void recordOpen() {
+		opens.incrementAndGet();
+	}
+
+	// return the statistics of the freshness as a printable string
+	public String getStats() {
+		return String.format("freshOpens=%d freshnessChanges=%d", opens.get(), changes.get());
+	}
+}
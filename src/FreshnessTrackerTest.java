@@ -0,0 +1,75 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * TTL of the cached versions opened without validation (FreshnessTracker).
+ */
+
+public class FreshnessTrackerTest {
+
+	// a file whose history is not known gets no TTL; its TTL then grows with the time
+	// since it last changed
+	@Test
+	public void ttlGrowsWithAge() {
+		FreshnessTracker freshness = new FreshnessTracker(60000);
+		long now = System.currentTimeMillis();
+		freshness.validated("a", 1, now - 100000);
+		Assert.assertFalse(freshness.isFresh("a", 1));
+		// TTL of 10s
+		freshness.validated("a", 1, now - 1000);
+		Assert.assertTrue(freshness.isFresh("a", 1));
+		Assert.assertFalse(freshness.isFresh("a", 2));
+		Assert.assertFalse(freshness.isFresh("b", 1));
+	}
+
+	// the version is no longer fresh once its TTL expired
+	@Test
+	public void ttlExpires() {
+		FreshnessTracker freshness = new FreshnessTracker(60000);
+		long now = System.currentTimeMillis();
+		freshness.validated("a", 1, now - 200000);
+		// TTL of 18s, validated 20s ago
+		freshness.validated("a", 1, now - 20000);
+		Assert.assertFalse(freshness.isFresh("a", 1));
+	}
+
+	// the TTL is capped by the configured maximum
+	@Test
+	public void ttlCapped() {
+		FreshnessTracker freshness = new FreshnessTracker(5000);
+		long now = System.currentTimeMillis();
+		freshness.validated("a", 1, now - 1000000);
+		freshness.validated("a", 1, now - 6000);
+		Assert.assertFalse(freshness.isFresh("a", 1));
+		freshness.validated("a", 1, now - 4000);
+		Assert.assertTrue(freshness.isFresh("a", 1));
+	}
+
+	// a new version restarts the TTL from zero; a validation older than the one recorded
+	// is ignored
+	@Test
+	public void changeRestartsTtl() {
+		FreshnessTracker freshness = new FreshnessTracker(60000);
+		long now = System.currentTimeMillis();
+		freshness.validated("a", 1, now - 100000);
+		freshness.validated("a", 1, now - 1000);
+		Assert.assertTrue(freshness.isFresh("a", 1));
+		freshness.validated("a", 2, now);
+		Assert.assertFalse(freshness.isFresh("a", 1));
+		Assert.assertFalse(freshness.isFresh("a", 2));
+		freshness.validated("a", 1, now - 500);
+		Assert.assertFalse(freshness.isFresh("a", 1));
+		Assert.assertTrue(freshness.getStats().contains("freshnessChanges=1"));
+	}
+
+	// an unlinked file is no longer fresh
+	@Test
+	public void forget() {
+		FreshnessTracker freshness = new FreshnessTracker(60000);
+		long now = System.currentTimeMillis();
+		freshness.validated("a", 1, now - 100000);
+		freshness.validated("a", 1, now - 1000);
+		freshness.forget("a");
+		Assert.assertFalse(freshness.isFresh("a", 1));
+	}
+}
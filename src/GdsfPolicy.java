@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Greedy Dual Size Frequency replacement policy (size aware).
+ * Each file has the priority H = L + freq * cost / size, where cost is the number of
+ * RPC blocks needed to fetch the file again and L is the priority of the last evicted
+ * file (aging). The file with the lowest priority is evicted first, so large files
+ * which are rarely used leave the cache before small hot files.
+ */
+
+public class GdsfPolicy implements EvictionPolicy {
+	
+	// block size used by the server to send a file
+	private static final long BLOCK_SIZE = 1024 * 1024;
+	
+	// entry of a file in the policy
+	private static class Node {
+		FileCache file;
+		long size;			// size of the file in the cache
+		long freq;			// number of accesses
+		double priority;	// H value
+		long seq;			// tie breaker, older entries go first
+	}
+	
+	private double inflation = 0;	// L value
+	private long clock = 0;
+	private HashMap<String, Node> nodes = new HashMap<String, Node>();
+	// nodes ordered from the best victim to the worst
+	private TreeSet<Node> order = new TreeSet<Node>((a, b) ->
+		a.priority != b.priority ? Double.compare(a.priority, b.priority) : Long.compare(a.seq, b.seq));
+
+	public String getName() {
+		return "gdsf";
+	}
+	
+	// compute the priority of the node
+	private double priority(Node n) {
+		long size = Math.max(n.size, 1);
+		double cost = 1 + (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return inflation + n.freq * cost / size;
+	}
+
+	public void onInsert(FileCache file, long size) {
+		Node n = nodes.get(file.getFilePath());
+		if (n != null) {
+			order.remove(n);
+			n.freq++;
+		} else {
+			n = new Node();
+			n.freq = 1;
+			nodes.put(file.getFilePath(), n);
+		}
+		n.file = file;
+		n.size = size;
+		n.priority = priority(n);
+		n.seq = ++clock;
+		order.add(n);
+	}
+
+	public void onAccess(FileCache file) {
+		Node n = nodes.get(file.getFilePath());
+		onInsert(file, n == null ? file.getFileSize() : n.size);
+	}
+
+	public void onRemove(FileCache file, boolean evicted) {
+		Node n = nodes.remove(file.getFilePath());
+		if (n == null)
+			return;
+		order.remove(n);
+		// age the cache with the priority of the evicted file
+		if (evicted)
+			inflation = Math.max(inflation, n.priority);
+	}
+
+	public boolean contains(String path) {
+		return nodes.containsKey(path);
+	}
+
+	public FileCache selectVictim(Predicate<FileCache> canEvict) {
+		for (Node n : order) {
+			if (canEvict.test(n.file))
+				return n.file;
+		}
+		return null;
+	}
+}
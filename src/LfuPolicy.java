@@ -0,0 +1,74 @@
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Least frequently used replacement policy.
+ * Files are ordered by their access count; ties are broken by recency (the least
+ * recently used file goes first). Insert, access and remove are O(log n).
+ */
+
+public class LfuPolicy implements EvictionPolicy {
+	
+	// entry of a file in the policy
+	private static class Node {
+		FileCache file;
+		long freq;			// number of accesses
+		long seq;			// logical time of the last access
+	}
+	
+	private long clock = 0;
+	private HashMap<String, Node> nodes = new HashMap<String, Node>();
+	// nodes ordered from the best victim to the worst
+	private TreeSet<Node> order = new TreeSet<Node>((a, b) -> 
+		a.freq != b.freq ? Long.compare(a.freq, b.freq) : Long.compare(a.seq, b.seq));
+
+	public String getName() {
+		return "lfu";
+	}
+
+	public void onInsert(FileCache file, long size) {
+		if (nodes.containsKey(file.getFilePath())) {
+			onAccess(file);
+			return;
+		}
+		Node n = new Node();
+		n.file = file;
+		n.freq = 1;
+		n.seq = ++clock;
+		nodes.put(file.getFilePath(), n);
+		order.add(n);
+	}
+
+	public void onAccess(FileCache file) {
+		Node n = nodes.get(file.getFilePath());
+		if (n == null) {
+			onInsert(file, 0);
+			return;
+		}
+		// re-insert the node with the new key
+		order.remove(n);
+		n.file = file;
+		n.freq++;
+		n.seq = ++clock;
+		order.add(n);
+	}
+
+	public void onRemove(FileCache file, boolean evicted) {
+		Node n = nodes.remove(file.getFilePath());
+		if (n != null)
+			order.remove(n);
+	}
+
+	public boolean contains(String path) {
+		return nodes.containsKey(path);
+	}
+
+	public FileCache selectVictim(Predicate<FileCache> canEvict) {
+		for (Node n : order) {
+			if (canEvict.test(n.file))
+				return n.file;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.LinkedHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement policy.
+ * Hash-linked map keyed by the cache file path. Insert, access and remove are O(1)
+ * and the iteration order is the LRU order.
+ * Storage:
+ * ---- cold-> |0|1|2|3|......|n| <-warm
+ */
+
+public class LruPolicy implements EvictionPolicy {
+	
+	private LinkedHashMap<String, FileCache> fileUseList = new LinkedHashMap<String, FileCache>();
+
+	public String getName() {
+		return "lru";
+	}
+
+	// add the file to the warm end of the list
+	public void onInsert(FileCache file, long size) {
+		fileUseList.remove(file.getFilePath());
+		fileUseList.put(file.getFilePath(), file);
+	}
+
+	// move the file to the warm end of the list
+	public void onAccess(FileCache file) {
+		onInsert(file, 0);
+	}
+
+	public void onRemove(FileCache file, boolean evicted) {
+		fileUseList.remove(file.getFilePath());
+	}
+
+	public boolean contains(String path) {
+		return fileUseList.containsKey(path);
+	}
+
+	// walk the list from the cold end
+	public FileCache selectVictim(Predicate<FileCache> canEvict) {
+		for (FileCache file : fileUseList.values()) {
+			if (canEvict.test(file))
+				return file;
+		}
+		return null;
+	}
+}
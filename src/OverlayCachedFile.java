@@ -0,0 +1,233 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Private copy of a file opened for write (see CachedFile), kept as an overlay on the
+ * version of the file in the cache.
+ *
+ * 1. Reads of the blocks not written to fall through to the version, which is shared
+ *    with the other clients and stays pinned till the copy is closed.
+ * 2. A block written to is first copied to the delta file, at its offset, and then
+ *    updated there (copy on write). The delta file is sparse: only the blocks written
+ *    to use space in the cache.
+ * 3. The copy is materialized (the blocks not written to are copied to the delta file)
+ *    only when it is closed, so that it can become the latest version in the cache.
+ *
+ * Opening a file for write therefore takes no time and no cache space, whatever the
+ * size of the file.
+ */
+
+public class OverlayCachedFile implements CachedFile {
+
+	// size of the blocks copied on write
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private CacheMgr cacheMgr;			// cache manager, for the space of the delta
+	private FileCache version;			// pinned version of the file, null if not in the cache
+	private String serverFileName;		// name of the file on the server
+	private FileChannel base;			// the version, opened for read
+	private long baseLength;			// length of the version
+	private File deltaFile;				// the delta file
+	private RandomAccessFile delta;		// the blocks written to, at their offsets
+	private BitSet dirty = new BitSet();	// blocks copied to the delta file
+	private long length;				// length of the copy
+	private long pointer = 0;			// file pointer
+	private long accounted = 0;			// bytes of the delta file committed in the cache
+	private ByteBuffer copyBuffer;		// buffer of the block copies
+	private boolean closed = false;
+
+	/*
+	 * Constructor. The copy is an overlay on the base file. version is the pinned version
+	 * of the base file, if any; it is released when the copy is closed
+	 */
+	public OverlayCachedFile(CacheMgr cacheMgr, FileCache version, String serverFileName, Path basePath, File deltaFile) throws IOException {
+		this.cacheMgr = cacheMgr;
+		this.version = version;
+		this.serverFileName = serverFileName;
+		this.deltaFile = deltaFile;
+		base = FileChannel.open(basePath, StandardOpenOption.READ);
+		try {
+			baseLength = base.size();
+			delta = new RandomAccessFile(deltaFile, "rw");
+			delta.setLength(0);
+			cacheMgr.setWrittenSpace(deltaFile, 0);
+		} catch (IOException e) {
+			base.close();
+			throw e;
+		}
+		length = baseLength;
+	}
+
+	public int read(byte[] buf) throws IOException {
+		if (pointer >= length)
+			return -1;
+		int n = read(ByteBuffer.wrap(buf), pointer);
+		pointer += n;
+		return n;
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (position >= length)
+			return -1;
+		int total = 0;
+		while (dst.hasRemaining() && position < length) {
+			int block = (int) (position / BLOCK_SIZE);
+			long blockEnd = Math.min((long) (block + 1) * BLOCK_SIZE, length);
+			int chunk = (int) Math.min(dst.remaining(), blockEnd - position);
+			ByteBuffer part = dst.duplicate();
+			part.limit(part.position() + chunk);
+			if (dirty.get(block))
+				// written to. Read from the delta file
+				readFully(delta.getChannel(), part, position);
+			else if (position < baseLength)
+				// not written to. Read from the version
+				readFully(base, part, position);
+			// else: beyond the version and not written to. Reads as zeros
+			while (part.hasRemaining())
+				part.put((byte) 0);
+			dst.position(dst.position() + chunk);
+			position += chunk;
+			total += chunk;
+		}
+		return total;
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		int n = src.remaining();
+		if (n == 0)
+			return 0;
+		long end = pointer + n;
+		// copy the blocks written to for the first time
+		for (long b = pointer / BLOCK_SIZE; b <= (end - 1) / BLOCK_SIZE; b++) {
+			if (!dirty.get((int) b) && !copyOnWrite((int) b))
+				return FileHandling.Errors.ENOMEM;
+		}
+		FileChannel out = delta.getChannel();
+		while (src.hasRemaining())
+			out.write(src, pointer + n - src.remaining());
+		pointer = end;
+		length = Math.max(length, end);
+		return n;
+	}
+
+	public long getFilePointer() {
+		return pointer;
+	}
+
+	public void seek(long pos) {
+		pointer = pos;
+	}
+
+	public long length() {
+		return length;
+	}
+
+	// check whether the copy differs from the version
+	public boolean isModified() {
+		return !dirty.isEmpty() || length != baseLength;
+	}
+
+	/*
+	 * Copy the blocks not written to into the delta file, so that the delta file is a
+	 * complete copy of the file.
+	 * return 0 if success, ENOMEM if the cache does not have space for the copy
+	 */
+	public int materialize() throws IOException {
+		long need = length - accounted;
+		if (need > 0 && !cacheMgr.reserveSpace(need, serverFileName, true))
+			return FileHandling.Errors.ENOMEM;
+		try {
+			int nrOfBlocks = (int) ((Math.min(length, baseLength) + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			for (int b = dirty.nextClearBit(0); b < nrOfBlocks; b = dirty.nextClearBit(b + 1))
+				copyBlock(b);
+			if (delta.length() < length)
+				delta.setLength(length);
+		} catch (IOException e) {
+			if (need > 0)
+				cacheMgr.releaseSpace(need);
+			throw e;
+		}
+		// the delta file now uses length bytes of the cache
+		if (need > 0)
+			cacheMgr.commitSpace(need);
+		else
+			cacheMgr.freeSpace(-need);
+		accounted = length;
+		cacheMgr.setWrittenSpace(deltaFile, accounted);
+		dirty.set(0, (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE));
+		return 0;
+	}
+
+	// close the copy and release the version. The delta file is kept
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		cacheMgr.removeWrittenSpace(deltaFile);
+		try {
+			base.close();
+			delta.close();
+		} finally {
+			if (version != null)
+				cacheMgr.releaseVersion(version);
+		}
+	}
+
+	// close the copy and delete the delta file
+	public void discard() throws IOException {
+		close();
+		if (deltaFile.delete())
+			cacheMgr.freeSpace(accounted);
+		accounted = 0;
+	}
+
+	// copy a block of the version to the delta file before it is written to.
+	// return false if the cache does not have space for the block
+	private boolean copyOnWrite(int block) throws IOException {
+		if (!cacheMgr.reserveSpace(BLOCK_SIZE, serverFileName, true))
+			return false;
+		try {
+			copyBlock(block);
+		} catch (IOException e) {
+			cacheMgr.releaseSpace(BLOCK_SIZE);
+			throw e;
+		}
+		cacheMgr.commitSpace(BLOCK_SIZE);
+		accounted += BLOCK_SIZE;
+		cacheMgr.setWrittenSpace(deltaFile, accounted);
+		dirty.set(block);
+		return true;
+	}
+
+	// copy the part of the block inside the version to the delta file
+	private void copyBlock(int block) throws IOException {
+		long start = (long) block * BLOCK_SIZE;
+		if (start >= baseLength)
+			return;
+		if (copyBuffer == null)
+			copyBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+		copyBuffer.clear();
+		copyBuffer.limit((int) Math.min(BLOCK_SIZE, baseLength - start));
+		readFully(base, copyBuffer, start);
+		copyBuffer.flip();
+		FileChannel out = delta.getChannel();
+		while (copyBuffer.hasRemaining())
+			out.write(copyBuffer, start + copyBuffer.position());
+	}
+
+	// read till the buffer is full or the end of the file
+	private static void readFully(FileChannel in, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = in.read(dst, position);
+			if (n < 0)
+				return;
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Space of the private copies opened for write (OverlayCachedFile) in the cache.
+ */
+
+public class OverlayCachedFileTest {
+
+	static String dir = "cache_overlay";
+
+	// an open private copy is counted with the blocks written to, not with the length of
+	// its sparse file
+	@Test
+	public void reconcileCountsOpenCopies() throws IOException {
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "a_v1"), new byte[1000000]);
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(2000000);
+		Assert.assertEquals(1000000, mgr.getUsedSpace());
+
+		File deltaFile = new File(dir, "a_w");
+		OverlayCachedFile copy = new OverlayCachedFile(mgr, null, "a", Paths.get(dir, "a_v1"), deltaFile);
+		copy.seek(900000);
+		Assert.assertEquals(1, copy.write(ByteBuffer.wrap(new byte[] {1})));
+		long used = mgr.getUsedSpace();
+		Assert.assertTrue(used > 1000000);
+		Assert.assertTrue(deltaFile.length() > used - 1000000);
+		Assert.assertEquals(used, mgr.reconcileUsedSpace());
+
+		copy.discard();
+		Assert.assertFalse(deltaFile.exists());
+		Assert.assertEquals(1000000, mgr.getUsedSpace());
+		Assert.assertEquals(1000000, mgr.reconcileUsedSpace());
+	}
+
+	// a materialized copy uses its length
+	@Test
+	public void materializedCopy() throws IOException {
+		TestFiles.clean(dir);
+		Files.write(Paths.get(dir, "a_v1"), new byte[300000]);
+		CacheMgr mgr = new CacheMgr();
+		mgr.setCacheDir(dir);
+		mgr.setCacheSize(2000000);
+
+		File deltaFile = new File(dir, "a_w");
+		OverlayCachedFile copy = new OverlayCachedFile(mgr, null, "a", Paths.get(dir, "a_v1"), deltaFile);
+		Assert.assertEquals(1, copy.write(ByteBuffer.wrap(new byte[] {1})));
+		Assert.assertEquals(0, copy.materialize());
+		Assert.assertEquals(600000, mgr.getUsedSpace());
+		Assert.assertEquals(600000, mgr.reconcileUsedSpace());
+		copy.close();
+		Assert.assertEquals(600000, mgr.reconcileUsedSpace());
+		copy.discard();
+		Assert.assertEquals(300000, mgr.getUsedSpace());
+	}
+}
@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-path exclusive locks with blocking waits and timeouts.
+ * 
+ * 1. A single holder can hold the lock of a path.
+ * 2. Locks are not owned by a thread. A lock taken by one RMI call (openSession) can be
+ *    released by another call running on a different thread (closeSession).
+ * 3. Fairness: the waiters of a path are served in arrival order.
+ * 4. Waits are counted and timed so that lock contention can be monitored.
+ * 
+ * The lock of a path is created on first use and dropped once nobody holds or waits for it.
+ */
+
+public class PathLockManager {
+	
+	// lock state of a path. Guarded by its own monitor
+	private static class PathLock {
+		boolean held = false;			// the lock is held
+		// waiters for the lock, in arrival order
+		ArrayDeque<Object> waiters = new ArrayDeque<Object>();
+		int refs = 0;					// holders and waiters. Guarded by the map
+	}
+	
+	private ConcurrentHashMap<String, PathLock> locks = new ConcurrentHashMap<String, PathLock>();
+	
+	// lock wait metrics
+	private AtomicLong acquisitions = new AtomicLong();	// locks granted
+	private AtomicLong waits = new AtomicLong();		// locks granted after waiting
+	private AtomicLong waitNanos = new AtomicLong();	// total time spent waiting
+	private AtomicLong maxWaitNanos = new AtomicLong();	// longest wait
+	private AtomicLong timeouts = new AtomicLong();		// waits which timed out
+	
+	/*
+	 * Acquire the lock of the path. Wait at most timeout milliseconds.
+	 * return true if the lock was acquired, false if the wait timed out
+	 */
+	public boolean acquire(String path, long timeout) throws InterruptedException {
+		PathLock l = retain(path);
+		long start = System.nanoTime();
+		boolean waited = false;
+		Object ticket = new Object();
+		synchronized (l) {
+			l.waiters.addLast(ticket);
+			try {
+				while (l.held || l.waiters.peekFirst() != ticket) {
+					waited = true;
+					long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - start);
+					if (remaining <= 0) {
+						timeouts.incrementAndGet();
+						l.waiters.remove(ticket);
+						// the next waiter may be waiting behind this one
+						l.notifyAll();
+						drop(path, l);
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(l, remaining);
+				}
+			} catch (InterruptedException e) {
+				l.waiters.remove(ticket);
+				l.notifyAll();
+				drop(path, l);
+				throw e;
+			}
+			l.waiters.removeFirst();
+			l.held = true;
+		}
+		granted(start, waited);
+		return true;
+	}
+	
+	// release the lock of the path
+	public void release(String path) {
+		PathLock l = locks.get(path);
+		if (l == null)
+			// lock is not held
+			return;
+		synchronized (l) {
+			l.held = false;
+			l.notifyAll();
+		}
+		drop(path, l);
+	}
+	
+	// return the lock wait metrics as a printable string
+	public String getStats() {
+		return String.format("lockAcquisitions=%d lockWaits=%d lockWaitMs=%d maxLockWaitMs=%d lockTimeouts=%d",
+				acquisitions.get(), waits.get(), TimeUnit.NANOSECONDS.toMillis(waitNanos.get()),
+				TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()), timeouts.get());
+	}
+	
+	// record a granted lock
+	private void granted(long start, boolean waited) {
+		acquisitions.incrementAndGet();
+		if (!waited)
+			return;
+		long waitTime = System.nanoTime() - start;
+		waits.incrementAndGet();
+		waitNanos.addAndGet(waitTime);
+		maxWaitNanos.accumulateAndGet(waitTime, Math::max);
+	}
+	
+	// get the lock of the path, creating it if required, and count the reference
+	private PathLock retain(String path) {
+		return locks.compute(path, (k, l) -> {
+			if (l == null)
+				l = new PathLock();
+			l.refs++;
+			return l;
+		});
+	}
+	
+	// drop a reference to the lock. The lock is removed once it is not referenced
+	private void drop(String path, PathLock lock) {
+		locks.computeIfPresent(path, (k, l) -> {
+			if (l != lock)
+				return l;
+			l.refs--;
+			return l.refs == 0 ? null : l;
+		});
+	}
+}
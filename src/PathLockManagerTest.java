@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Per-path exclusive locks (PathLockManager).
+ */
+
+public class PathLockManagerTest {
+
+	// the lock of a path has a single holder; other paths are not blocked
+	@Test
+	public void exclusive() throws InterruptedException {
+		PathLockManager locks = new PathLockManager();
+		Assert.assertTrue(locks.acquire("a", 100));
+		Assert.assertFalse(locks.acquire("a", 50));
+		Assert.assertTrue(locks.acquire("b", 50));
+		locks.release("a");
+		Assert.assertTrue(locks.acquire("a", 50));
+		locks.release("a");
+		locks.release("b");
+		Assert.assertTrue(locks.getStats().contains("lockTimeouts=1"));
+	}
+
+	// a lock taken on one thread is released on another
+	@Test
+	public void releasedByAnotherThread() throws InterruptedException {
+		PathLockManager locks = new PathLockManager();
+		Assert.assertTrue(locks.acquire("a", 100));
+		Thread t = new Thread(() -> locks.release("a"));
+		t.start();
+		t.join();
+		Assert.assertTrue(locks.acquire("a", 100));
+	}
+
+	// the waiters are served in arrival order
+	@Test
+	public void waitersServedInOrder() throws InterruptedException {
+		PathLockManager locks = new PathLockManager();
+		Assert.assertTrue(locks.acquire("a", 100));
+		List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		List<Thread> waiters = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			int n = i;
+			Thread t = new Thread(() -> {
+				try {
+					if (locks.acquire("a", 5000)) {
+						order.add(n);
+						locks.release("a");
+					}
+				} catch (InterruptedException e) {
+					// test fails below
+				}
+			});
+			t.start();
+			waiters.add(t);
+			// the next waiter arrives after this one waits
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		locks.release("a");
+		for (Thread t : waiters)
+			t.join(5000);
+		Assert.assertEquals(List.of(0, 1, 2), order);
+		Assert.assertTrue(locks.getStats().contains("lockWaits=3"));
+	}
+}
@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Cache file opened as such (see CachedFile). Used for the files opened for read.
+ */
+
+public class PlainCachedFile implements CachedFile {
+
+	private RandomAccessFile rf;	// the cache file
+
+	// constructor
+	public PlainCachedFile(RandomAccessFile rf) {
+		this.rf = rf;
+	}
+
+	public int read(byte[] buf) throws IOException {
+		return rf.read(buf);
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return rf.getChannel().read(dst, position);
+	}
+
+	// throws NonWritableChannelException if the file is opened for read only
+	public int write(ByteBuffer src) throws IOException {
+		return rf.getChannel().write(src);
+	}
+
+	public long getFilePointer() throws IOException {
+		return rf.getFilePointer();
+	}
+
+	public void seek(long pos) throws IOException {
+		rf.seek(pos);
+	}
+
+	public long length() throws IOException {
+		return rf.length();
+	}
+
+	public void close() throws IOException {
+		rf.close();
+	}
+}
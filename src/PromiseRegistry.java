@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Promises made by the server to call back the proxies caching a file (see
+ * CallbackPromises for the side of the proxy).
+ *
+ * 1. Every holder of a promise is recorded with the version promised to it and the end
+ *    of its lease. A proxy holds one promise per file, on the newest version promised.
+ * 2. A commit breaks the promises on the versions older than the version committed.
+ *    A promise on the committed version itself, made between the commit and its break,
+ *    holds; the proxy keeps it too, since it ignores breaks older than its promise.
+ *
+ * The holders of a file are only modified inside compute().
+ */
+
+public class PromiseRegistry {
+
+	// promise made to a proxy
+	private static class Holder {
+		long version;		// version promised
+		long expiry;		// end of the lease (in milliseconds)
+	}
+
+	// holders of the promises against the file name, by the id of their callback
+	private final ConcurrentHashMap<String, HashMap<Long, Holder>> promises = new ConcurrentHashMap<String, HashMap<Long, Holder>>();
+
+	// promise the proxy to call it back if the version of the file is replaced before expiry.
+	// The expired promises of the file are dropped
+	public void promise(String path, long clientId, long version, long expiry, long now) {
+		promises.compute(path, (k, holders) -> {
+			if (holders == null)
+				holders = new HashMap<Long, Holder>();
+			holders.values().removeIf(h -> h.expiry < now);
+			Holder h = holders.get(clientId);
+			if (h != null && h.version > version)
+				// a newer version is already promised to the proxy
+				return holders;
+			if (h == null) {
+				h = new Holder();
+				holders.put(clientId, h);
+			}
+			h.version = version;
+			h.expiry = expiry;
+			return holders;
+		});
+	}
+
+	/*
+	 * Break the promises on the versions of the file older than stamp (the version
+	 * committed, or a new version number if the file was unlinked).
+	 * return the ids of the proxies to call back, whose promises had not expired
+	 */
+	public List<Long> breakPromises(String path, long stamp, long now) {
+		List<Long> broken = new ArrayList<Long>();
+		promises.computeIfPresent(path, (k, holders) -> {
+			holders.entrySet().removeIf(e -> {
+				if (e.getValue().version >= stamp)
+					return false;
+				if (e.getValue().expiry >= now)
+					broken.add(e.getKey());
+				return true;
+			});
+			return holders.isEmpty() ? null : holders;
+		});
+		return broken;
+	}
+}
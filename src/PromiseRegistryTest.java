@@ -0,0 +1,66 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Promises of the server on the files (PromiseRegistry), and their order with the commits.
+ */
+
+public class PromiseRegistryTest {
+
+	static final long NOW = 1000;
+	static final long EXPIRY = NOW + 30000;
+
+	// a commit breaks the promises on the older versions, once
+	@Test
+	public void commitBreaksOlderVersions() {
+		PromiseRegistry promises = new PromiseRegistry();
+		promises.promise("a", 1, 5, EXPIRY, NOW);
+		promises.promise("a", 2, 5, EXPIRY, NOW);
+		promises.promise("b", 1, 5, EXPIRY, NOW);
+		List<Long> broken = promises.breakPromises("a", 6, NOW);
+		Collections.sort(broken);
+		Assert.assertEquals(Arrays.asList(1L, 2L), broken);
+		Assert.assertTrue(promises.breakPromises("a", 7, NOW).isEmpty());
+		Assert.assertEquals(Arrays.asList(1L), promises.breakPromises("b", 6, NOW));
+	}
+
+	// a promise of the version committed, made after the commit installed it and before
+	// its break, holds till the next commit
+	@Test
+	public void promiseBetweenCommitAndBreak() {
+		PromiseRegistry promises = new PromiseRegistry();
+		promises.promise("a", 1, 5, EXPIRY, NOW);
+		// commit of version 6, then an open of version 6, then the break of the commit
+		promises.promise("a", 2, 6, EXPIRY, NOW);
+		Assert.assertEquals(Arrays.asList(1L), promises.breakPromises("a", 6, NOW));
+		// the next commit calls back the proxy promised version 6
+		Assert.assertEquals(Arrays.asList(2L), promises.breakPromises("a", 7, NOW));
+	}
+
+	// an open of an older version does not replace the promise of a newer version made
+	// to the same proxy
+	@Test
+	public void newerPromiseKept() {
+		PromiseRegistry promises = new PromiseRegistry();
+		promises.promise("a", 1, 6, EXPIRY, NOW);
+		promises.promise("a", 1, 5, EXPIRY, NOW);
+		Assert.assertTrue(promises.breakPromises("a", 6, NOW).isEmpty());
+		Assert.assertEquals(Arrays.asList(1L), promises.breakPromises("a", 7, NOW));
+	}
+
+	// expired promises are not called back
+	@Test
+	public void expiredPromises() {
+		PromiseRegistry promises = new PromiseRegistry();
+		promises.promise("a", 1, 5, NOW + 10, NOW);
+		promises.promise("a", 2, 5, EXPIRY, NOW);
+		Assert.assertEquals(Arrays.asList(2L), promises.breakPromises("a", 6, NOW + 20));
+		// an unlink breaks every promise
+		promises.promise("a", 3, 6, EXPIRY, NOW);
+		Assert.assertEquals(Arrays.asList(3L), promises.breakPromises("a", Long.MAX_VALUE, NOW));
+	}
+}
@@ -1,25 +1,26 @@
 
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
-import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 class Proxy {
@@ -35,22 +36,60 @@ class Proxy {
 
 	// Maximum file size which can be transferred/received at a time
 	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
-	// object to handle locking
-	private static Object lock = new Object();
+	// Number of block requests in flight per file being fetched or sent
+	private static int fetchWindow = 4;
+	// Maximum bytes of the blocks in flight across all the fetches (and, separately, the uploads)
+	private static int fetchMemory = 64 * MAX_BLOCK_SIZE;
+	// Fetches the blocks of the files from the server. Created once the options are set
+	private static BlockFetcher fetcher = null;
+	// Sends the blocks of the files to the server. Created once the options are set
+	private static BlockUploader uploader = null;
+	// Send the files written to as deltas against the version they were created from
+	private static boolean deltaUpload = false;
+	// Fetch the new versions of the cached files as deltas against the cached version
+	private static boolean deltaFetch = true;
+	// Bytes of the files sent or received as references to blocks instead of literals
+	private static AtomicLong deltaBytesSaved = new AtomicLong();
+	// Promises of the server to call back the proxy when the cached files change. null if
+	// the callbacks are disabled
+	private static CallbackPromises callbacks = null;
+	// Register a callback with the server (set by the -callbacks option)
+	private static boolean useCallbacks = false;
+	// Id of the callback of the proxy on the server, 0 if none
+	private static long clientId = 0;
+	// Freshness of the cached files validated by the server. null if the cached files are
+	// always validated (no -ttl option)
+	private static FreshnessTracker freshness = null;
+	// Stale-while-revalidate opens of the files matching the -swr prefixes. null if the
+	// option is not given
+	private static Revalidator swr = null;
+	// Period (in milliseconds) of the background validation of the cache, 0 if disabled
+	private static long validatePeriod = 0;
+	// Validates the cached files in batches. null if the background validation is disabled
+	private static BackgroundValidator validator = null;
+	// Locks of the cache files. A new version of a file (fetched or promoted from a private
+	// copy) is added under the lock of its path. Operations on different files run in parallel
+	private static PathLockManager pathLocks = new PathLockManager();
+	// Maximum time (in milliseconds) to wait for the lock of a cache file
+	private static final long LOCK_TIMEOUT = 60 * 1000;
 
 	public static class FileHandler implements FileHandling {
 
 		/*----- The static variables are meant to be shared across all the clients-----*/
 
 		// File descriptor to be given to each client. Has to be unique across clients.
-		private static int uniqueFd = 10;
+		private static AtomicInteger uniqueFd = new AtomicInteger(10);
+		// Fetches of files from the server in flight, keyed by the file name and version
+		private static SingleFlight<FileCache> fetches = new SingleFlight<FileCache>();
+		// Returned by openLocal when the file has to be opened through the server
+		private static final int NOT_LOCAL = Integer.MIN_VALUE;
 		// Map to store the File Descriptor against the associated FileCache object
 		private static ConcurrentHashMap<Integer, FileCache> fileCacheFdMap = new ConcurrentHashMap<Integer, FileCache>();	
 		
 		/*----- The below variables are private to a client and not shared among different clients -----*/
 
-		// Map to store the RandomFileAccess object against the File Descriptor
-		private ConcurrentHashMap<Integer, RandomAccessFile> fileFdMap = new ConcurrentHashMap<Integer, RandomAccessFile>();
+		// Map to store the opened cache file against the File Descriptor
+		private ConcurrentHashMap<Integer, CachedFile> fileFdMap = new ConcurrentHashMap<Integer, CachedFile>();
 		// ArrayList to store the File Descriptors which are opened for a directory
 		private ArrayList<Integer> fdDir = new ArrayList<Integer>();
 		// ByteBuffer to wrap the content of the Byte[]
@@ -58,6 +97,9 @@ class Proxy {
 
 		/*
 		 * The method does the following main things (in sequence):
+		 * 0.	Opens the cached file right away if the server promised to call
+		 * 		back the proxy when it changes, if it was validated within its TTL, or
+		 * 		if it is opened stale-while-revalidate.
 		 * 1.	Opens a session on the server for the requested file.
 		 * 2.	Checks for file in the cache and gets the file from the
 		 * 		server if required.
@@ -67,10 +109,20 @@ class Proxy {
 
 			String mode = o.toString();
 			
+			// A file cached under a promise of the server, still fresh, or opened
+			// stale-while-revalidate is opened locally
+			if (callbacks != null || freshness != null || swr != null) {
+				int fd = openLocal(path, mode);
+				if (fd != NOT_LOCAL)
+					return fd;
+			}
+			
 			// Get an instance of FileCache object
 			FileCache file = new FileCache(path, o.toString());
+			file.setClientId(clientId);
 			
 			// Open a session on the server for the file and get the required attributes
+			long opened = System.currentTimeMillis();
 			try {
 				file = svr.openSession(file);
 			} catch (RemoteException e) {
@@ -90,6 +142,10 @@ class Proxy {
 			// File is accessed outside the server directory
 			if (file.getErrorCode() == Errors.EPERM) 
 				return Errors.EPERM;
+			
+			// File is being updated on the server for too long
+			if (file.getErrorCode() == Errors.EBUSY) 
+				return Errors.EBUSY;
 
 			/*------ END: Check for errors. No errors -----*/	
 
@@ -99,184 +155,192 @@ class Proxy {
 			if (file.isDir() && mode.compareTo("READ") == 0) {
 				
 				// Since file descriptor variable is shared across clients, the
-				// operation needs to be made atomic so as to make sure that the 
+				// operation needs to be atomic so as to make sure that the 
 				// fd generated for the file is the one which is added to the list and
 				// returned.
-				synchronized (lock) {
-					uniqueFd++;
-					fdDir.add(uniqueFd);
-					return uniqueFd;
-				}
+				int fd = uniqueFd.incrementAndGet();
+				fdDir.add(fd);
+				return fd;
 			} else if (file.isDir()) {
 				// directory is requested to be opened in NON-READ mode, return error
 				return Errors.EISDIR;
 			}
 
-			/*----- START: Get lock on file -------*/
-			 
-			// Get exclusive lock on the file before comparing the file in cache
-			// to the file on server. This is to make sure that no two clients on
-			// a Proxy are fetching the same file from the server simultaneously. 
+			// Create the directory structure of the file in the cache
 			Path p = Paths.get(createPathName(dir, file.getFilePath()));
-			Path pDir = p.getParent();
 			try {
-				Files.createDirectories(pDir);
+				Files.createDirectories(p.getParent());
 			} catch (IOException e1) {
 				//Error creating directory structure
 				return Errors.EBADF; //may be not the best error code.
 			}
 			
-			File f = new File(p.toString());
-			RandomAccessFile rf = null;
-			FileLock fLock = null;
-			try {
-				// If the code comes here and the file is to be opened in
-				// CREATE_NEW, we can create the file while getting the lock itself.
-				rf = new RandomAccessFile(f, "rw");
-				FileChannel fChannel = rf.getChannel();
-
-				// Loop till the client gets a lock on the file. If the client does not get a lock,
-				// then the file is currently being obtained by another client
-				while (true) {
-					try {
-						fLock = fChannel.tryLock();
-						break;
-					} catch (OverlappingFileLockException e) {
-						// Lock not found
-					}
-				}
-
-			} catch (FileNotFoundException e) {
-				// This exception would never be raised. File has been created
-				// already.
-			} catch (IOException e) {
-				// Error creating lock
-				return -1;
-			}
-			
-			/*----- END: Get lock on file. Lock obtained -------*/
-			
 			/*----- START: Check and get file from server -------*/
 			 
 			// If the file exists on the cache but is not the latest version OR the
 			// file does not exist on the cache; in both the cases, fetch the
 			// file from the server.
-			 
-			FileCache cachedFile = null;
-			boolean getFromServer = false;
-			// Check if the file exists in cache or not
-			if ((cachedFile = cacheMgr.isFileInCache(path)) != null) {
-				// File exists in cache.
-				// Compare the last modified date of the file in cache with the 
-				// last modified date of the file on server (file object's last modified date)
-				if (cachedFile.getLastModifiedAt() != file.getLastModifiedAt())
-					// File in cache is not the latest version.
-					getFromServer = true;
-				else{
-					// set the filepath of the current cache object to the filepath of the file in cache.
-					// File in cache might have a different name than the one requested by the client
-					file.setFilePath(cachedFile.getFilePath());
+			int err = 0;
+			// version of the file in the cache pinned for this client. It is shared with
+			// the other clients reading the same version and released on close
+			FileCache pinned = null;
+			FileCache cachedFile = cacheMgr.isFileInCache(file.getServerFileName());
+			// Compare the version of the file in cache with the
+			// version of the file on server (file object's version)
+			if (cachedFile != null && cachedFile.getVersion() == file.getVersion()
+					&& cacheMgr.pinVersion(cachedFile)) {
+				// File in cache is the latest version.
+				// set the filepath of the current cache object to the filepath of the file in cache.
+				// File in cache might have a different name than the one requested by the client
+				file.setFilePath(cachedFile.getFilePath());
+				pinned = cachedFile;
+				cacheMgr.recordHit();
+			} else if (file.getNrOfBlocks() == 0) {
+				// New file is to be created. Since it's a new file, it would not take any space in the
+				// cache till it is written to. So no need to check for space in the cache
+				try {
+					p.toFile().createNewFile();
+				} catch (IOException e) {
+					// Error creating file
+					err = -1;
 				}
-			} else
-				// File does not exist in the cache.
-				getFromServer = true;
-
-			if (getFromServer) {
-				// Get file from server
-				int nrOfBlocks = file.getNrOfBlocks();
-				if (nrOfBlocks == 0) {
-					// New file is to be created. It has already been created while acquiring lock.
-					// Since it's a new file, it would not take any space in the
-					// cache till it is written to. So no need to check for space in the cache
-				} else {
-					// Check cache for space. This process needs to be synchronized so that multiple
-					// clients don't update the cache space simultaneously
-					synchronized (lock) {
-						
-						boolean hasSpace = cacheMgr.checkAndMakeSpace(
-								file.getFileSize(), path, path, false);
-						// Cache does not have space.
-						if (!hasSpace) {
-							// Cache does not have space. Release the lock on the file
-							try {
-								if (f.length() == 0)
-									// the file was created while acquiring lock. Delete it.
-									f.delete();
-								fLock.release();
-								rf.close();
-							} catch (IOException e) {
-								// Error in releasing lock
-								return -1;
-							}
-							// Close session on the server
-							try {
-								svr.closeSession(file.getServerFileName());
-							} catch (RemoteException e) {
-								return Errors.EBUSY;
-							}
-							return Errors.ENOMEM;
-						}
-						
-						// Cache has space
-						try {
-							String newName = path;
-							if (cacheMgr.fileInUse(path) > 0) {
-								// If the file is in use currently by another client,
-								// create a separate copy in cache.
-								newName = createNewName(path, "r");
-								f = new File(createPathName(dir, newName));
-							}
-							else
-							{	
-								// if the file is not in use, delete it before writing to it.
-								// if not deleted, it is probable that the resulting cache file has 
-								// a mix of the old and the new contents.
-								f = new File(createPathName(dir, path));
-								f.delete();
-							}
-							
-							// Get the file in blocks
-							for (int i = 1; i <= nrOfBlocks; i++) {
-								byte[] bytes;
-								bytes = svr.getFile(i, file);
-								FileOutputStream fOut = new FileOutputStream(f, true);
-								fOut.write(bytes);
-								fOut.close();
-							}
-							// update the filename to the new name (if any)
-							file.setFilePath(newName);
-							// add the latest version of the file in cache
-							cacheMgr.setLatestVersion(path, file);
-						} catch (RemoteException e) {
-							return Errors.EBUSY;
-						} catch (FileNotFoundException e) {
-							// This exception would never be raised
-						} catch (IOException e) {
-							// Error writing to file
-							return -1;
-						} //end try
-					} //end synchronized
-				} //end if(nrOfBlocks)
-			} //end if(getFromServer) 
+			} else {
+				// Get the file from the server. Clients opening the same version of the file
+				// at the same time share a single fetch
+				FileCache session = file;
+				FileCache fetched = fetches.call(session.getServerFileName() + "@" + session.getVersion(),
+						() -> fetchFile(session));
+				err = fetched.getErrorCode();
+				file.setFilePath(fetched.getFilePath());
+				if (err == 0) {
+					if (cacheMgr.pinVersion(fetched))
+						pinned = fetched;
+					else
+						// evicted as soon as it was fetched
+						err = Errors.ENOMEM;
+				}
+			}
 			
 			/*----- END: Check and get file from server -------*/
 			
-			// Release the lock on the file
-			try {
-				fLock.release();
-				rf.close();
-			} catch (IOException e) {
-				// Error releasing lock
-				return -1;
-			}
 			// Close session on the server
 			try {
-				svr.closeSession(file.getServerFileName());
+				svr.closeSession(file.getSessionId());
 			} catch (RemoteException e) {
 				//Unable to connect to remote function
-				return Errors.EBUSY;
+				err = Errors.EBUSY;
+			}
+			if (err != 0) {
+				if (pinned != null)
+					cacheMgr.releaseVersion(pinned);
+				return err;
 			}
 			
+			validated(file, opened);
+			return openFile(file, pinned, mode);
+		} //end open
+		
+		// record the version of the file validated by the server in the session opened
+		// at the given time
+		private void validated(FileCache file, long opened) {
+			String name = file.getServerFileName();
+			// The server promised to call back the proxy if the file changes within the lease
+			if (callbacks != null && file.getLease() > 0)
+				callbacks.promise(name, file.getVersion(), opened + file.getLease());
+			// The version is the latest as of the time the session was opened
+			if (freshness != null)
+				freshness.validated(name, file.getVersion(), opened);
+			// Empty files are not kept in the cache
+			if (swr != null)
+				swr.setServable(name, file.getNrOfBlocks() > 0);
+		}
+		
+		/*
+		 * Open the latest cached version of the file without contacting the server, if the
+		 * server promised to call back the proxy when the file changes, if the version
+		 * was validated within its TTL, or if the file is opened for read
+		 * stale-while-revalidate (it is then revalidated in the background).
+		 * return the file descriptor, NOT_LOCAL if the server has to be asked
+		 */
+		private int openLocal(String path, String mode) {
+			// files created or checked for existence go to the server
+			if (mode.compareTo("READ") != 0 && mode.compareTo("WRITE") != 0)
+				return NOT_LOCAL;
+			FileCache file = new FileCache(path, mode);
+			String name = file.getServerFileName();
+			FileCache cachedFile = cacheMgr.isFileInCache(name);
+			if (cachedFile == null)
+				return NOT_LOCAL;
+			boolean promised = callbacks != null && callbacks.isPromised(name, cachedFile.getVersion());
+			boolean fresh = !promised && freshness != null && freshness.isFresh(name, cachedFile.getVersion());
+			boolean stale = !promised && !fresh && swr != null && mode.compareTo("READ") == 0 && swr.matches(name);
+			if (!promised && !fresh && !stale)
+				return NOT_LOCAL;
+			if (!cacheMgr.pinVersion(cachedFile))
+				return NOT_LOCAL;
+			// the attributes the server would have sent
+			file.setFilePath(cachedFile.getFilePath());
+			file.setFileSize(cachedFile.getFileSize());
+			file.setNrOfBlocks(cachedFile.getNrOfBlocks());
+			file.setVersion(cachedFile.getVersion());
+			if (promised)
+				callbacks.recordOpen();
+			else if (fresh)
+				freshness.recordOpen();
+			else {
+				swr.recordOpen(name, cachedFile.getVersion());
+				revalidate(name);
+			}
+			cacheMgr.recordHit();
+			return openFile(file, cachedFile, mode);
+		}
+		
+		/*
+		 * Validate the version of the file opened from the cache in the background, and
+		 * fetch the new version of the file, if any, for the next opener
+		 */
+		private void revalidate(String name) {
+			swr.submit(name, () -> {
+				FileCache file = new FileCache(name, "READ");
+				file.setClientId(clientId);
+				long opened = System.currentTimeMillis();
+				try {
+					file = svr.openSession(file);
+				} catch (RemoteException e) {
+					swr.recordFailure();
+					return;
+				}
+				try {
+					if (file.getErrorCode() != 0 || file.isDir()) {
+						// the file is no longer on the server
+						swr.setServable(name, false);
+						return;
+					}
+					swr.recordLatest(name, file.getVersion());
+					FileCache cachedFile = cacheMgr.isFileInCache(name);
+					if (file.getNrOfBlocks() > 0 && (cachedFile == null || cachedFile.getVersion() != file.getVersion())) {
+						// Clients opening the same version at the same time share the fetch
+						FileCache session = file;
+						FileCache fetched = fetches.call(name + "@" + file.getVersion(), () -> fetchFile(session));
+						if (fetched.getErrorCode() != 0)
+							return;
+					}
+					validated(file, opened);
+				} finally {
+					try {
+						svr.closeSession(file.getSessionId());
+					} catch (RemoteException e) {
+						swr.recordFailure();
+					}
+				}
+			});
+		}
+		
+		/*
+		 * Open the file in the cache and return a file descriptor. pinned is the version of
+		 * the file in the cache pinned for this client, if any
+		 */
+		private int openFile(FileCache file, FileCache pinned, String mode) {
 			/*------ START: Open the file and send file descriptor ------*/
 			// Create a copy of the file object
 			FileCache newFile = file;
@@ -284,55 +348,52 @@ class Proxy {
 				// check whether the Option sent is in the enums or not.
 				OpenOption.valueOf(mode);
 
-				rf = null;
+				CachedFile rf = null;
 				if (mode.compareTo("CREATE_NEW") == 0
 						|| mode.compareTo("CREATE") == 0
 						|| mode.compareTo("WRITE") == 0) {
 
-					// create a private copy in the cache and open that
-					String privateFileName = createNewName(file.getFilePath(), "w");
-					synchronized (lock) {
-						// Check if the cache has space for the private copy.
-						boolean hasSpace = cacheMgr.checkAndMakeSpace(
-								file.getFileSize(), path, privateFileName, true);
-						if (!hasSpace) 
-							// cache does not has space
-							return Errors.ENOMEM;
-						
-						try {
-							File sFile = new File(createPathName(dir, path));
-							File dFile = new File(createPathName(dir, privateFileName));
-							dFile.createNewFile();
-							
-							cacheMgr.createPrivateCopy(sFile, dFile);
-							rf = new RandomAccessFile(createPathName(dir,
-									privateFileName), "rw");
-							// (Self desing decision)
-							// Mark the master copy of the file as MRU. 
-							// (since it was used to create the private copy)
-							cacheMgr.markFileAsMRU(file);							
-							
-							// create a new FileCache object for the private copy
-							newFile = (FileCache) file.clone();
-							newFile.setFilePath(privateFileName);
-						} catch (IOException e) {
-							// Error creating private copy
-							return -1;
-						} catch (CloneNotSupportedException e) {
-							e.printStackTrace();
-						}
+					// create a private copy in the cache and open that. The private copy is an
+					// overlay on the version: nothing is copied till it is written to.
+					// The version stays pinned till the private copy is closed
+					String privateFileName = createNewName(file.getServerFileName(), "w");
+					try {
+						rf = new OverlayCachedFile(cacheMgr, pinned, file.getServerFileName(),
+								Paths.get(createPathName(dir, file.getFilePath())),
+								new File(createPathName(dir, privateFileName)));
+					} catch (IOException e) {
+						// Error creating private copy
+						if (pinned != null)
+							cacheMgr.releaseVersion(pinned);
+						return -1;
 					}
+					// (Self desing decision)
+					// Mark the master copy of the file as MRU. 
+					// (since it was used to create the private copy)
+					if (pinned != null)
+						cacheMgr.markFileAsMRU(pinned);
+					
+					// create a new FileCache object for the private copy
+					try {
+						newFile = (FileCache) file.clone();
+					} catch (CloneNotSupportedException e) {
+						e.printStackTrace();
+					}
+					newFile.setFilePath(privateFileName);
+					cacheMgr.addFileInUse(privateFileName);
 				} else {
-					// open file only for read only access
-					rf = new RandomAccessFile(createPathName(dir, newFile.getFilePath()), "r");
+					// open file only for read only access. The version stays pinned till close
+					try {
+						rf = new PlainCachedFile(new RandomAccessFile(createPathName(dir, newFile.getFilePath()), "r"));
+					} catch (FileNotFoundException e) {
+						if (pinned != null)
+							cacheMgr.releaseVersion(pinned);
+						throw e;
+					}
 				}
 
-				// This ensures that the generated fd is only returned as ++ is
-				// not an atomic operation
-				synchronized (lock) {
-					uniqueFd++;
-					return setMaps(uniqueFd, newFile, rf);
-				}
+				// The generated fd is unique across clients
+				return setMaps(uniqueFd.incrementAndGet(), newFile, rf);
 			} catch (FileNotFoundException e) {
 				// File does not exist
 				return Errors.ENOENT;
@@ -340,7 +401,7 @@ class Proxy {
 				// Invalid arguments
 				return Errors.EINVAL;
 			}
-		} //end open
+		} //end openFile
 
 		public int close(int fd) {
 			// fd is a directory
@@ -356,39 +417,80 @@ class Proxy {
 			FileCache file = fileCacheFdMap.get(fd);
 			String fileName = file.getFilePath();
 			
-			// if the file was opened in non read mode, send the file to server only (if write succeeded)
-			// and delete the private copy created.
+			// if the file was opened in non read mode, send the file to server only (if write succeeded
+			// and the file was modified) and delete the private copy created.
 			if (file.getFileMode().compareTo("READ") != 0) {
-				if (!file.isErr())
-					sendFileToServer(fileName, file.getServerFileName());
-				
-				File f = new File(createPathName(dir, fileName));
-				f.delete(); // delete the private copy
+				OverlayCachedFile copy = (OverlayCachedFile) fileFdMap.get(fd);
+				int err = 0;
+				boolean promoted = false;
+				try {
+					if (!file.isErr() && copy.isModified()) {
+						// complete the private copy, so that it can be kept as the latest version.
+						// Without space in the cache, it is sent to the server as an overlay
+						boolean complete = copy.materialize() == 0;
+						long sent = System.currentTimeMillis();
+						long version = sendFileToServer(copy, file);
+						copy.close();
+						if (version < 0)
+							err = (int) version;
+						else if (complete)
+							// the private copy becomes the latest version in the cache
+							promoted = promoteToMaster(file, version);
+						// the version committed is the latest as of the time it was sent
+						if (promoted && freshness != null)
+							freshness.validated(file.getServerFileName(), version, sent);
+					}
+					if (!promoted)
+						copy.discard(); // delete the private copy
+				} catch (IOException e) {
+					// Error reading or deleting the private copy. Delete it, with the
+					// space committed for it
+					err = -1;
+					if (!promoted) {
+						try {
+							copy.discard();
+						} catch (IOException e1) {
+							// Error deleting the private copy
+						}
+					}
+				}
+				if (err != 0) {
+					// The file could not be sent to the server. Release the fd and report the error
+					closeFd(fd, fileName);
+					return err;
+				}
 			
 			} else {
 				// The file was opened in READ mode. Mark it as MRU.
-				// This needs to be an atomic operation and should be done one
-				// client at a time.
-				synchronized (lock) {
-					// Mark the file as MRU only if it is not being used by anyone else 
-					// other than this client
-					if(cacheMgr.fileInUse(file.getFilePath()) <= 1)
-						cacheMgr.markFileAsMRU(file);
-				}
+				// CacheMgr serializes the updates of the replacement policy.
+				// The version pinned by the client is marked, not the FileCache object of the
+				// session: the policy must keep the object registered as the version.
+				FileCache version = cacheMgr.findVersion(file);
+				if (version != null)
+					cacheMgr.markFileAsMRU(version);
 			}
 			// close/remove the entries from the map
+			return closeFd(fd, fileName);
+		} // end close
+		
+		// close the file and remove the entries of the fd from the maps
+		private int closeFd(int fd, String fileName) {
 			try {
-				RandomAccessFile rf = fileFdMap.get(fd);
+				CachedFile rf = fileFdMap.get(fd);
 				rf.close();
 				fileFdMap.remove(fd);
-				fileCacheFdMap.remove(fd);
-				cacheMgr.removeFileInUse(fileName);
+				FileCache file = fileCacheFdMap.remove(fd);
+				if (file.getFileMode().compareTo("READ") == 0)
+					// release the version read. It is deleted if it is no longer the latest
+					cacheMgr.releaseVersion(file);
+				else
+					cacheMgr.removeFileInUse(fileName);
 			} catch (IOException e1) {
 				// Error closing channel
 				return -1;
 			}
 			return 0;
-		} // end close
+		}
 
 		public long write(int fd, byte[] buf) {
 			long bytesWritten = -1;
@@ -403,23 +505,18 @@ class Proxy {
 			
 			// wrap the byte[] into a byte buffer
 			content = ByteBuffer.wrap(buf);
-			RandomAccessFile rf = fileFdMap.get(fd);
+			CachedFile rf = fileFdMap.get(fd);
 			try {
-				// check cache space before writing
-				synchronized (lock) {
-					FileCache file = fileCacheFdMap.get(fd);
-					boolean hasSpace = cacheMgr.checkAndMakeSpace(buf.length,
-							file.getServerFileName(),
-							file.getFilePath(), true);
-					if (!hasSpace) {
-						// cache does not have space. Mark it in the file object
-						// return 0. Nothing was written
-						file.setErr(true);
-						return 0;
-					}
-					bytesWritten = rf.getChannel().write(content);
-					fileFdMap.replace(fd, rf);	
+				// The private copy reserves the cache space of the blocks written to. It is only
+				// used by this client, so no lock is needed for the write itself
+				bytesWritten = rf.write(content);
+				if (bytesWritten == Errors.ENOMEM) {
+					// cache does not have space. Mark it in the file object
+					// return 0. Nothing was written
+					fileCacheFdMap.get(fd).setErr(true);
+					return 0;
 				}
+				fileFdMap.replace(fd, rf);	
 			} catch (IOException e) {
 				// Error getting File Channel
 				return -1;
@@ -442,7 +539,7 @@ class Proxy {
 				return Errors.EBADF;
 
 			content = ByteBuffer.allocate(buf.length);
-			RandomAccessFile rf = fileFdMap.get(fd);
+			CachedFile rf = fileFdMap.get(fd);
 
 			try {
 				// 0 bytes read if the end of file is reached
@@ -470,7 +567,7 @@ class Proxy {
 			if (!fileFdMap.containsKey(fd)) 
 				return Errors.EBADF;
 
-			RandomAccessFile rf = fileFdMap.get(fd);
+			CachedFile rf = fileFdMap.get(fd);
 			long desired_pos = 0;
 			try {
 				switch (o.toString()) {
@@ -530,6 +627,11 @@ class Proxy {
 				//Error connecting to server
 				return Errors.ENOENT;
 			}
+			// the cached versions are no longer fresh
+			if (freshness != null)
+				freshness.forget(Paths.get(path).normalize().toString());
+			if (swr != null && err == 0)
+				swr.setServable(Paths.get(path).normalize().toString(), false);
 			return err;
 		}
 
@@ -537,6 +639,132 @@ class Proxy {
 			return;
 		}
 		
+		/*
+		 * Get the file from the server into the cache and add it as the latest version of the file.
+		 * Returns the FileCache object of the cached file. The error code is set in the returned
+		 * object if the file could not be fetched.
+		 */
+		private FileCache fetchFile(FileCache file) {
+			String path = file.getServerFileName();
+			
+			// Get the file. The path is locked so that the versions of the file are added
+			// one at a time. Files of different paths are
+			// fetched in parallel; the space reserved for the file keeps them from over-committing the cache
+			try {
+				if (!pathLocks.acquire(path, LOCK_TIMEOUT)) {
+					file.setErrorCode(Errors.EBUSY);
+					return file;
+				}
+			} catch (InterruptedException e) {
+				file.setErrorCode(Errors.EBUSY);
+				return file;
+			}
+			try {
+				// The file may have been fetched by another client while waiting for the lock,
+				// or a later version promoted by a writer closing it
+				FileCache cachedFile = cacheMgr.isFileInCache(path);
+				if (cachedFile != null && cachedFile.getVersion() >= file.getVersion())
+					return cachedFile;
+				
+				// Every version is stored in its own file. The files of the older
+				// versions are kept till their last reader closes them, so a file still
+				// registered as a version is never truncated
+				String newName = versionedName(path, file.getVersion());
+				FileCache probe = new FileCache(path, "READ");
+				probe.setFilePath(newName);
+				FileCache registered = cacheMgr.findVersion(probe);
+				if (registered != null)
+					return registered;
+				
+				boolean hasSpace = cacheMgr.reserveSpace(file.getFileSize(), path, false);
+				if (!hasSpace) {
+					// Cache does not have space.
+					file.setErrorCode(Errors.ENOMEM);
+					return file;
+				}
+				
+				// Cache has space. Reserved bytes not written to the cache are released at the end
+				long reserved = file.getFileSize();
+				// The stale version in the cache, if any, is the base of a delta fetch. It is
+				// pinned so that it is not deleted while the new version is built from it
+				FileCache base = null;
+				if (deltaFetch && cachedFile != null && cachedFile.getFileSize() >= DeltaSync.BLOCK_SIZE
+						&& cacheMgr.pinVersion(cachedFile))
+					base = cachedFile;
+				try {
+					long received;
+					File f = new File(createPathName(dir, newName));
+					// the bytes of the file are reserved, not used, till they are committed
+					cacheMgr.setWrittenSpace(f, 0);
+					
+					// Get the file in blocks. The blocks are fetched in parallel and written at their offset
+					try (FileChannel out = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+						long written;
+						received = base == null ? -1 : fetchDelta(file, base, out);
+						if (received >= 0) {
+							// the new version is built next to the stale one
+							written = file.getFileSize();
+							deltaBytesSaved.addAndGet(Math.max(0, written - received));
+						} else {
+							written = fetcher.fetch(svr, file.getSessionId(), file.getFileSize(), out);
+							received = written;
+						}
+						cacheMgr.commitSpace(written);
+						reserved -= written;
+					} catch (IOException e) {
+						// the partial file is not in the cache. Delete it
+						f.delete();
+						throw e;
+					} finally {
+						cacheMgr.removeWrittenSpace(f);
+					}
+					cacheMgr.recordMiss(received);
+					// update the filename to the new name (if any)
+					file.setFilePath(newName);
+					// add the latest version of the file in cache
+					cacheMgr.setLatestVersion(path, file);
+					cacheMgr.retireOldVersions(path);
+					return file;
+				} catch (RemoteException e) {
+					file.setErrorCode(Errors.EBUSY);
+				} catch (IOException e) {
+					// Error writing to file
+					file.setErrorCode(-1);
+				} finally {
+					cacheMgr.releaseSpace(reserved);
+					if (base != null)
+						cacheMgr.releaseVersion(base);
+				}
+				return file;
+			} finally {
+				pathLocks.release(path);
+			}
+		}
+		
+		/*
+		 * Fetch the file as deltas against an older version of it in the cache: the signature
+		 * of the blocks of the older version is sent to the server, which sends back the
+		 * blocks that changed and references to the blocks that did not.
+		 * return the number of bytes received, -1 if the server does not accept the signature
+		 */
+		private long fetchDelta(FileCache file, FileCache base, FileChannel out) throws IOException {
+			try (FileChannel in = FileChannel.open(Paths.get(createPathName(dir, base.getFilePath())),
+					StandardOpenOption.READ)) {
+				DeltaSync.Signature sig = DeltaSync.signature(in, in.size());
+				if (svr.setSignature(file.getSessionId(), sig) != 0)
+					return -1;
+				return fetcher.fetchDelta(svr, file.getSessionId(), file.getFileSize(), in, out);
+			}
+		}
+		
+		// creates the name of the cache file of the given version of the path
+		private String versionedName(String path, long version) {
+			// append before the extension
+			int i = path.contains(".") ? path.lastIndexOf(".") : path.length();
+			return path.substring(0, i) + "_v" + version + path.substring(i);
+		}
+		
 		// creates a new name for the given path
 		private String createNewName(String path, String mode) {
 			// append before the extension
@@ -546,10 +774,9 @@ class Proxy {
 		}
 		
 		// sets all the maps and returns the fd
-		private synchronized int setMaps(int fd, FileCache file, RandomAccessFile rf) {
+		private synchronized int setMaps(int fd, FileCache file, CachedFile rf) {
 			fileFdMap.put(fd, rf);
 			fileCacheFdMap.put(fd, file);
-			cacheMgr.addFileInUse(file.getFilePath());
 			return fd;
 		}
 		
@@ -565,59 +792,120 @@ class Proxy {
 			return p.toString();
 		}
 
-		// Send file to the server
-		private void sendFileToServer(String path, String serverPath) {
+		/*
+		 * Make the private copy, just sent to the server, the latest version of the file in
+		 * the cache, so that the next open does not fetch it back.
+		 * return true if the private copy was renamed, false if it should be deleted
+		 */
+		private boolean promoteToMaster(FileCache file, long version) {
+			String path = file.getServerFileName();
+			// the versions of the file are added one at a time
+			try {
+				if (!pathLocks.acquire(path, LOCK_TIMEOUT))
+					return false;
+			} catch (InterruptedException e) {
+				return false;
+			}
+			try {
+				// a later version may have been fetched meanwhile
+				FileCache cachedFile = cacheMgr.isFileInCache(path);
+				if (cachedFile != null && cachedFile.getVersion() >= version)
+					return false;
+				
+				String newName = versionedName(path, version);
+				Path source = Paths.get(createPathName(dir, file.getFilePath()));
+				Path target = Paths.get(createPathName(dir, newName));
+				long size = Files.size(source);
+				Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				
+				// the space of the private copy is already accounted in the cache
+				FileCache master = new FileCache(path, "READ");
+				master.setFilePath(newName);
+				master.setVersion(version);
+				master.setFileSize(size);
+				cacheMgr.setLatestVersion(path, master);
+				cacheMgr.retireOldVersions(path);
+				return true;
+			} catch (IOException e) {
+				// Error renaming the private copy
+				return false;
+			} finally {
+				pathLocks.release(path);
+			}
+		}
+
+		// Send file to the server. return the version committed if success, else the error
+		private long sendFileToServer(CachedFile in, FileCache file) {
+			String serverPath = file.getServerFileName();
+			// The blocks are read with positional reads of the private copy, which is
+			// not shared with other clients, so no proxy lock is held during the upload
 			try {
-				File file = new File(createPathName(dir, path));
-				long size = file.length();
-				int no_of_blocks = 0;
+				long size = in.length();
 				
-				// initialize a map to store the block against its size
-				ConcurrentHashMap<Integer, Integer> blockSize = new ConcurrentHashMap<Integer, Integer>();
-				if (size > MAX_BLOCK_SIZE) {
-					while (size > 0) {
-						no_of_blocks++;
-						if (size > MAX_BLOCK_SIZE) {
-							size -= MAX_BLOCK_SIZE;
-							blockSize.put(no_of_blocks, MAX_BLOCK_SIZE);
-						} else {
-							blockSize.put(no_of_blocks, (int) size);
-							size = 0;
-						}
-					}
-				} else {
-					no_of_blocks = 1;
-					blockSize.put(no_of_blocks, (int) size);
+				// Send only the changes to the version the private copy was created from
+				if (deltaUpload && file.getFileSize() >= DeltaSync.BLOCK_SIZE) {
+					long version = sendDeltaToServer(in, size, file);
+					if (version != Errors.ENOENT)
+						return version;
+					// the version is no longer the current one on the server. Send the whole file
 				}
-
-				int skipBytes = 0;
-				synchronized (lock) {
-					// Open a session for write on the server. The file name on 
-					// the server would be the one the client requested initially.
-					svr.openSessionForWrite(serverPath);
-					// send file in chunks
-					for (int i = 1; i <= no_of_blocks; i++) {
-						// skip blocksize bytes if more than one block is to be sent
-						if (i != 1)
-							skipBytes += blockSize.get(i - 1);
-						
-						FileInputStream fIn = new FileInputStream(createPathName(dir, path));
-						fIn.skip(skipBytes);
-						byte[] bytes = new byte[blockSize.get(i)];
-						fIn.read(bytes);
-						fIn.close();
-						// write file to the server
-						svr.writeFile(bytes, serverPath);
-					}
-					// close the session for write on the server.
-					svr.closeSessionForWrite(serverPath);
-				} //end synchronized
-			} catch (FileNotFoundException e) {
-				// this exception would not be raised.
+				
+				// Open a session for write on the server. The file name on 
+				// the server would be the one the client requested initially.
+				// The server publishes the file only when the session is closed.
+				long handle = svr.openSessionForWrite(serverPath, size);
+				if (handle < 0)
+					return handle;
+				// send file in blocks, written by the server at their offsets
+				try {
+					uploader.upload(svr, handle, in, size);
+				} catch (IOException e) {
+					// abandon the upload. The file on the server is not replaced
+					svr.abortSessionForWrite(handle);
+					throw e;
+				}
+				// close the session for write on the server, replacing the file
+				return svr.closeSessionForWrite(handle);
+			} catch (RemoteException e) {
+				// Error connecting to server
+				return Errors.EBUSY;
 			} catch (IOException e) {
-				// Error writing
+				// Error reading or writing
+				return -1;
 			}
 		}
+		
+		/*
+		 * Send the file to the server as a delta against the version the private copy was
+		 * created from (rsync style, see DeltaSync). The server sends the signature of the
+		 * version, the proxy sends the bytes not found in it and references to the blocks found.
+		 * return the version committed if success, ENOENT if the version is not the current
+		 * one on the server, else the error
+		 */
+		private long sendDeltaToServer(CachedFile in, long size, FileCache file) throws IOException {
+			long handle = svr.openSessionForDelta(file.getServerFileName(), size, file.getVersion());
+			if (handle < 0)
+				return handle;
+			try {
+				DeltaSync.Signature sig = svr.getSignature(handle);
+				if (!DeltaSync.isValid(sig)) {
+					svr.abortSessionForWrite(handle);
+					return Errors.ENOENT;
+				}
+				// the pages are applied by the server in the order they are sent
+				long literals = DeltaSync.encode(in::read, size, sig, page -> {
+					if (svr.writeDelta(handle, page) != 0)
+						throw new IOException("Error applying the delta");
+				});
+				deltaBytesSaved.addAndGet(size - literals);
+			} catch (IOException e) {
+				// abandon the upload. The file on the server is not replaced
+				svr.abortSessionForWrite(handle);
+				throw e;
+			}
+			// close the session for write on the server, replacing the file
+			return svr.closeSessionForWrite(handle);
+		}
 
 	}
 
@@ -637,6 +925,15 @@ class Proxy {
 		}
 		// connect to the server
 		connect_to_server(args[0], args[1]);
+		
+		// print the cache statistics when the proxy is stopped
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(cacheMgr.getStats()
+				+ " " + pathLocks.getStats()
+				+ (deltaUpload || deltaFetch ? " deltaBytesSaved=" + deltaBytesSaved.get() : "")
+				+ (callbacks != null ? " " + callbacks.getStats() : "")
+				+ (freshness != null ? " " + freshness.getStats() : "")
+				+ (swr != null ? " " + swr.getStats() : "")
+				+ (validator != null ? " " + validator.getStats() : ""))));
 
 		(new RPCreceiver(new FileHandlingFactory())).run();
 	}
@@ -671,8 +968,108 @@ class Proxy {
 			//Invalid Cache size
 			System.exit(1);
 		}
+		
+		// Set the optional arguments
+		check_options(args);
+		
+		// Rebuild the cache from the journal of the previous run (if any)
+		cacheMgr.loadJournal();
 		return err;
 	}
+	
+	// Check the optional arguments. They are given as "-name value" pairs after the
+	// mandatory arguments
+	public static void check_options(String[] args) {
+		for (int i = 4; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				// Option without a value
+				System.exit(1);
+			}
+			String value = args[i + 1];
+			try {
+				switch (args[i]) {
+				case "-reconcile":
+					// period (in seconds) of the background used space reconciler
+					long period = Long.parseLong(value);
+					if (period <= 0)
+						System.exit(1);
+					cacheMgr.startReconciler(period * 1000);
+					break;
+					
+				case "-policy":
+					// cache replacement policy: lru, lfu, arc or gdsf
+					if (cacheMgr.setEvictionPolicy(value) < 0)
+						System.exit(1);
+					break;
+					
+				case "-fetchwindow":
+					// number of block requests in flight per file
+					fetchWindow = Integer.parseInt(value);
+					if (fetchWindow <= 0)
+						System.exit(1);
+					break;
+					
+				case "-fetchmem":
+					// maximum bytes of the blocks in flight across the proxy
+					fetchMemory = Integer.parseInt(value);
+					if (fetchMemory < MAX_BLOCK_SIZE)
+						System.exit(1);
+					break;
+					
+				case "-delta":
+					// delta transfers: on, off, upload (of the files written to) or fetch (of the
+					// new versions of the cached files)
+					if (value.compareTo("on") == 0 || value.compareTo("off") == 0
+							|| value.compareTo("upload") == 0 || value.compareTo("fetch") == 0) {
+						deltaUpload = value.compareTo("on") == 0 || value.compareTo("upload") == 0;
+						deltaFetch = value.compareTo("on") == 0 || value.compareTo("fetch") == 0;
+					} else
+						System.exit(1);
+					break;
+					
+				case "-ttl":
+					// maximum time (in milliseconds) a validated file is opened without validation.
+					// The TTL of each file adapts to how often it changes
+					long maxTtl = Long.parseLong(value);
+					if (maxTtl < 0)
+						System.exit(1);
+					freshness = maxTtl > 0 ? new FreshnessTracker(maxTtl) : null;
+					break;
+					
+				case "-swr":
+					// comma separated prefixes of the files opened for read stale-while-revalidate
+					swr = new Revalidator(Arrays.asList(value.split(",")));
+					break;
+					
+				case "-validate":
+					// period (in milliseconds) of the background validation of all the cached files
+					validatePeriod = Long.parseLong(value);
+					if (validatePeriod < 0)
+						System.exit(1);
+					break;
+					
+				case "-callbacks":
+					// callback promises of the server on the cached files: on or off
+					if (value.compareTo("on") == 0)
+						useCallbacks = true;
+					else if (value.compareTo("off") == 0)
+						useCallbacks = false;
+					else
+						System.exit(1);
+					break;
+					
+				default:
+					// Unknown option
+					System.exit(1);
+				}
+			} catch (NumberFormatException e) {
+				// Invalid option value
+				System.exit(1);
+			}
+		}
+		fetcher = new BlockFetcher(MAX_BLOCK_SIZE, fetchWindow, fetchMemory);
+		uploader = new BlockUploader(MAX_BLOCK_SIZE, fetchWindow, fetchMemory);
+	}
 
 	public static void connect_to_server(String ip, String port) {
 		try {
@@ -693,6 +1090,58 @@ class Proxy {
 			System.err.println("server is null");
 			System.exit(1);
 		}
+		
+		// export the callback of the proxy and register it with the server
+		if (useCallbacks) {
+			try {
+				CallbackPromises promises = new CallbackPromises();
+				clientId = svr.registerCallback(promises);
+				callbacks = promises;
+			} catch (RemoteException e) {
+				// open the files through the server
+				System.err.println("Failed to register the callback " + e);
+			}
+		}
+		
+		// validate the cached files in the background
+		if (validatePeriod > 0) {
+			validator = new BackgroundValidator(svr, cacheMgr, new ValidationListener());
+			validator.start(validatePeriod);
+		}
+	}
+	
+	// Records the results of the background validations of the cached files
+	private static class ValidationListener implements BackgroundValidator.Listener {
+		
+		// runs the revalidations of the stale-while-revalidate files which changed
+		private final FileHandler handler = new FileHandler();
+		
+		public void unchanged(FileCache cached, long at) {
+			if (freshness != null)
+				freshness.validated(cached.getServerFileName(), cached.getVersion(), at);
+			if (swr != null)
+				swr.recordLatest(cached.getServerFileName(), cached.getVersion());
+		}
+		
+		public void changed(FileCache cached, FileCache latest, long at) {
+			String name = cached.getServerFileName();
+			if (latest.getErrorCode() != 0) {
+				// the file can no longer be opened from the cache
+				if (freshness != null)
+					freshness.forget(name);
+				if (swr != null)
+					swr.setServable(name, false);
+				return;
+			}
+			// the cached version is no longer fresh
+			if (freshness != null)
+				freshness.validated(name, latest.getVersion(), at);
+			if (swr != null)
+				swr.recordLatest(name, latest.getVersion());
+			// fetch the new version for the next stale-while-revalidate opener
+			if (swr != null && latest.getNrOfBlocks() > 0 && swr.matches(name))
+				handler.revalidate(name);
+		}
 	}
 
 }
@@ -0,0 +1,132 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stale-while-revalidate opens of the files matching a set of path prefixes.
+ *
+ * 1. A matching file in the cache is opened right away from its latest cached version,
+ *    without waiting for the server (which may be slow or unreachable).
+ * 2. The file is then revalidated in the background, and the new version, if any,
+ *    fetched for the next opener. At most one revalidation of a file runs at a time.
+ * 3. A file found unlinked (or empty, so not cached) on the server is no longer opened
+ *    from the cache till it is seen in the cache again.
+ */
+
+public class Revalidator {
+
+	// opens of a file served from the cache
+	private static class Served {
+		long latest;			// newest version known on the server, 0 if none
+		// opens of the versions newer than latest (not checked yet), by version
+		HashMap<Long, Long> unchecked = new HashMap<Long, Long>();
+	}
+
+	private final List<String> prefixes;	// prefixes of the server file names
+	// files with a revalidation in flight
+	private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+	// files which cannot be opened from the cache: unlinked or empty on the server
+	private final Set<String> notServable = ConcurrentHashMap.newKeySet();
+	// threads running the revalidations
+	private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "revalidator");
+		t.setDaemon(true);
+		return t;
+	});
+	// opens served from the cache, against the server file name
+	private final ConcurrentHashMap<String, Served> served = new ConcurrentHashMap<String, Served>();
+	// statistics
+	private final AtomicLong opens = new AtomicLong();
+	private final AtomicLong staleOpens = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	// constructor
+	public Revalidator(List<String> prefixes) {
+		this.prefixes = prefixes;
+	}
+
+	// check whether the file is opened without waiting for its validation
+	public boolean matches(String path) {
+		if (notServable.contains(path))
+			return false;
+		for (String prefix : prefixes) {
+			if (path.startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	// run the revalidation of the file in the background, unless one is in flight already
+	public void submit(String path, Runnable revalidation) {
+		if (!inFlight.add(path))
+			return;
+		try {
+			workers.execute(() -> {
+				try {
+					revalidation.run();
+				} finally {
+					inFlight.remove(path);
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.remove(path);
+			throw e;
+		}
+	}
+
+	// record whether the latest version of the file on the server can be opened from the cache
+	public void setServable(String path, boolean servable) {
+		if (servable)
+			notServable.remove(path);
+		else
+			notServable.add(path);
+	}
+
+	// record an open of the version of the file from the cache. The open is stale if a newer
+	// version is known on the server; otherwise it is counted when the version is checked
+	public void recordOpen(String path, long version) {
+		opens.incrementAndGet();
+		served.compute(path, (k, s) -> {
+			if (s == null)
+				s = new Served();
+			if (version < s.latest)
+				staleOpens.incrementAndGet();
+			else if (version > s.latest)
+				s.unchecked.merge(version, 1L, Long::sum);
+			return s;
+		});
+	}
+
+	// record the version of the file on the server. The opens of the older versions
+	// served from the cache are stale
+	public void recordLatest(String path, long version) {
+		served.compute(path, (k, s) -> {
+			if (s == null)
+				s = new Served();
+			s.latest = Math.max(s.latest, version);
+			long latest = s.latest;
+			s.unchecked.entrySet().removeIf(e -> {
+				if (e.getKey() > latest)
+					return false;
+				if (e.getKey() < latest)
+					staleOpens.addAndGet(e.getValue());
+				return true;
+			});
+			return s;
+		});
+	}
+
+	// record a revalidation which could not reach the server
+	public void recordFailure() {
+		failures.incrementAndGet();
+	}
+
+	// return the statistics of the revalidations as a printable string
+	public String getStats() {
+		return String.format("swrOpens=%d swrStaleOpens=%d swrFailures=%d", opens.get(), staleOpens.get(), failures.get());
+	}
+}
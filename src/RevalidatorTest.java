@@ -0,0 +1,42 @@
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Statistics of the stale-while-revalidate opens (Revalidator).
+ */
+
+public class RevalidatorTest {
+
+	// every open of a version older than the one on the server is stale, whether the
+	// newer version is known when the file is opened or found by a revalidation later
+	@Test
+	public void staleOpensCountedPerOpen() {
+		Revalidator swr = new Revalidator(Arrays.asList("a"));
+		swr.recordOpen("a", 1);
+		swr.recordOpen("a", 1);
+		swr.recordOpen("a", 1);
+		Assert.assertTrue(swr.getStats().contains("swrOpens=3 swrStaleOpens=0"));
+		swr.recordLatest("a", 2);
+		Assert.assertTrue(swr.getStats().contains("swrStaleOpens=3"));
+		// the stale version is still served while the new one is fetched
+		swr.recordOpen("a", 1);
+		// the new version
+		swr.recordOpen("a", 2);
+		swr.recordLatest("a", 2);
+		Assert.assertTrue(swr.getStats().contains("swrOpens=5 swrStaleOpens=4"));
+	}
+
+	// the opens of the latest version are not stale
+	@Test
+	public void currentOpensNotStale() {
+		Revalidator swr = new Revalidator(Arrays.asList("a"));
+		swr.recordOpen("a", 5);
+		swr.recordLatest("a", 5);
+		swr.recordOpen("a", 5);
+		swr.recordOpen("b", 1);
+		swr.recordLatest("b", 1);
+		Assert.assertTrue(swr.getStats().contains("swrOpens=3 swrStaleOpens=0"));
+	}
+}
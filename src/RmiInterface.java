@@ -1,5 +1,6 @@
 
 import java.rmi.*;
+import java.util.List;
 
 /**
  * @author vsaravag
@@ -8,12 +9,20 @@ import java.rmi.*;
 
 public interface RmiInterface extends java.rmi.Remote{
 	
+	public long registerCallback(CacheCallback callback) throws RemoteException;
 	public FileCache openSession(FileCache file) throws RemoteException;
-	public void closeSession(String path) throws RemoteException;
-	public byte[] getFile(int blockNumber, FileCache file) throws RemoteException;
-	public void writeFile(byte[] bytes, String path) throws RemoteException;
-	public void openSessionForWrite(String path) throws RemoteException;	
-	public void closeSessionForWrite(String origFile) throws RemoteException;
+	public void closeSession(long handle) throws RemoteException;
+	public byte[] getBlock(long handle, long offset, int length) throws RemoteException;
+	public int setSignature(long handle, DeltaSync.Signature sig) throws RemoteException;
+	public byte[] getDelta(long handle, long offset, int length) throws RemoteException;
+	public long openSessionForWrite(String path, long size) throws RemoteException;
+	public int writeBlock(long handle, long offset, byte[] bytes) throws RemoteException;
+	public long openSessionForDelta(String path, long size, long baseVersion) throws RemoteException;
+	public DeltaSync.Signature getSignature(long handle) throws RemoteException;
+	public int writeDelta(long handle, byte[] page) throws RemoteException;
+	public long closeSessionForWrite(long handle) throws RemoteException;
+	public void abortSessionForWrite(long handle) throws RemoteException;
 	public int unlink(String path) throws RemoteException;
-	public long getLastModified(String path) throws RemoteException;
+	public long getVersion(String path) throws RemoteException;
+	public List<FileCache> validate(List<FileCache> files) throws RemoteException;
 }
@@ -1,24 +1,51 @@
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.*;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 
 
 /**
  * @author vsaravag
  * Server class. Handles all the operations required on the server side
+ * 
+ * The RPCs are not synchronized on the server object; RMI runs them in parallel on its
+ * worker threads. Every committed upload creates a new immutable version of the file:
+ * 1. A read session pins the current version of the file and reads it till the session
+ *    is closed, even if newer versions are committed meanwhile.
+ * 2. An upload is staged in a temporary file and published with an atomic rename.
+ * 3. The file of a version is open only while sessions pin it. A replaced version is
+ *    freed when its last session closes.
+ * Readers and writers of a file therefore never wait for each other.
+ *
+ * Proxies which registered a callback get a promise (lease) with every file they open:
+ * the server calls them back when a version of the file is committed or the file is
+ * unlinked within the lease, so that they can open the cached file without asking.
  */
 public class Server extends UnicastRemoteObject implements RmiInterface {
 
@@ -29,13 +56,146 @@ public class Server extends UnicastRemoteObject implements RmiInterface {
 	private static final int MAX_BLOCK_SIZE = 1024 * 1024;
 	
 	/*
-	 * Map to keep track of what files are currently being sent/updated in the server.
-	 * <K, V>	: 	V > 0 -> file is being sent to the client
-	 * 			:	V < 0 -> file is being updated
-	 */ 
-	private static ConcurrentHashMap<String, Integer> sessionFileLock = new ConcurrentHashMap<String, Integer>();
-	// object to handle locking
-	private Object lock = new Object();
+	 * Committed version of a file. Only the attributes identifying the version are kept
+	 * while it is current; its file is opened when the first read session pins it and
+	 * closed by the last unpin, so idle files hold no file descriptor. A version which has
+	 * been replaced (or unlinked) is retired: it is no longer pinned, and its contents are
+	 * garbage collected by the file system once its last session closes
+	 */
+	private static class Version {
+		long number;			// version number. Increases with every version created
+		long size;				// size of the file
+		long mtime;				// last modified time of the file
+		Object fileKey;			// identity (inode) of the file
+		Path path;				// the file
+		FileChannel channel;	// file opened for read while pinned, else null
+		DeltaSync.Signature signature;	// signature of the blocks, computed on first use
+		private int pins = 0;			// sessions reading the version
+		private boolean retired = false;	// replaced or unlinked
+		
+		// pin the version, opening its file for the first session. return false if the
+		// version is retired or its file was replaced by other means than the server
+		synchronized boolean pin() throws IOException {
+			if (retired)
+				return false;
+			if (channel == null) {
+				FileChannel c;
+				try {
+					c = FileChannel.open(path, StandardOpenOption.READ);
+				} catch (NoSuchFileException e) {
+					return false;
+				}
+				// the file opened must be the one of the version
+				boolean same;
+				try {
+					same = matches(Files.readAttributes(path, BasicFileAttributes.class));
+				} catch (NoSuchFileException e) {
+					same = false;
+				} catch (IOException e) {
+					c.close();
+					throw e;
+				}
+				if (!same) {
+					c.close();
+					return false;
+				}
+				channel = c;
+			}
+			pins++;
+			return true;
+		}
+		
+		// unpin the version. The last unpin closes the file
+		synchronized void unpin() {
+			if (--pins == 0) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Error closing the file
+				}
+				channel = null;
+			}
+		}
+		
+		// retire the version once it is no longer current
+		synchronized void retire() {
+			retired = true;
+		}
+		
+		// get the signature of the blocks of the version, for delta uploads
+		synchronized DeltaSync.Signature signature() throws IOException {
+			if (signature == null)
+				signature = DeltaSync.signature(channel, size);
+			return signature;
+		}
+		
+		// check whether the version is the one of the file with the given attributes.
+		// Detects the files replaced on the server directory by other means than the server
+		boolean matches(BasicFileAttributes attrs) {
+			return attrs.lastModifiedTime().toMillis() == mtime && attrs.size() == size
+					&& (fileKey == null || fileKey.equals(attrs.fileKey()));
+		}
+	}
+	
+	// Current version of the files against their normalized name. The version of a file
+	// is replaced inside compute(), which serializes the commits and unlinks of a file
+	private static ConcurrentHashMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+	// Last version number given. Starts from the time of start (in microseconds), or
+	// from the last number of the version table, so the numbers increase across the
+	// restarts of the server
+	private static AtomicLong lastVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+	// Version numbers of the files, kept across the restarts. null if it cannot be used
+	private static VersionTable versionTable = null;
+	
+	// Read session. The version of the file read by the session is pinned from openSession
+	// till closeSession, so that blocks are read without reopening the file
+	private static class ReadSession {
+		Version version;		// version of the file read
+		volatile DeltaSync.Signature clientSignature;	// signature of the version the client has, if any
+		HashMap<Integer, List<Integer>> clientBlocks;	// blocks of clientSignature by weak checksum
+	}
+	
+	// Write session. The blocks are written at their offsets, in any order, to a preallocated
+	// temporary file which is committed as the new version of the file in closeSessionForWrite
+	private static class WriteSession {
+		String path;			// normalized file name
+		Path staging;			// temporary file receiving the blocks
+		FileChannel channel;	// temporary file opened for write
+		Version base;			// pinned version the delta is applied to (delta uploads only)
+		long position;			// bytes of the file rebuilt from the delta so far
+		long size;				// size of the file declared when the session was opened
+	}
+	
+	// Prefix of the temporary files of the uploads
+	private static final String STAGING_PREFIX = ".upload_";
+	
+	// Open read sessions against their handle
+	private static ConcurrentHashMap<Long, ReadSession> readSessions = new ConcurrentHashMap<Long, ReadSession>();
+	// Open write sessions against their handle
+	private static ConcurrentHashMap<Long, WriteSession> writeSessions = new ConcurrentHashMap<Long, WriteSession>();
+	// Times the version of a file is pinned again when it is replaced while being pinned
+	private static final int PIN_RETRIES = 3;
+	// Handle of the last session opened
+	private static AtomicLong sessionId = new AtomicLong();
+	
+	// Callbacks of the proxies against their id
+	private static ConcurrentHashMap<Long, CacheCallback> callbacks = new ConcurrentHashMap<Long, CacheCallback>();
+	// Id of the last callback registered
+	private static AtomicLong callbackId = new AtomicLong();
+	// Promises made on the files, against the normalized file name: the proxies to call
+	// back, with the version promised and the end of their lease
+	private static PromiseRegistry promises = new PromiseRegistry();
+	// Time (in milliseconds) a promise is kept. Bounds the staleness of the files of the
+	// proxies that could not be called back
+	private static final long PROMISE_LEASE = 30 * 1000;
+	// Maximum time (in milliseconds) a commit waits for the proxies to be called back
+	private static final long CALLBACK_TIMEOUT = 5 * 1000;
+	// threads calling back the proxies
+	private static ExecutorService callbackWorkers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "callback");
+		t.setDaemon(true);
+		return t;
+	});
 	
 	// constructor
 	protected Server() throws RemoteException {
@@ -43,10 +203,208 @@ public class Server extends UnicastRemoteObject implements RmiInterface {
 	}
 	
 	
-	 // returns the last modified date of the file on the server
-	public long getLastModified(String path) throws RemoteException{
-		File f = new File(createPathName(dir, path));
-		return f.lastModified();
+	/*
+	 * Register the callback of a proxy. The proxy sends the returned id with the files
+	 * it opens to get promises on them
+	 */
+	public long registerCallback(CacheCallback callback) throws RemoteException {
+		long id = callbackId.incrementAndGet();
+		callbacks.put(id, callback);
+		return id;
+	}
+	
+	/*
+	 * Promise to call back the proxy if the version of the file is replaced within the
+	 * lease. The promise is made once the version is pinned; if the version was replaced
+	 * meanwhile, the commit may have broken the promises before this one was made.
+	 * return the lease, 0 if the proxy has no callback or the version is no longer current
+	 */
+	private static long promise(String path, long clientId, long version) {
+		if (clientId == 0 || !callbacks.containsKey(clientId))
+			return 0;
+		String key = Paths.get(path).normalize().toString();
+		long now = System.currentTimeMillis();
+		promises.promise(key, clientId, version, now + PROMISE_LEASE, now);
+		// a commit installs its version before it breaks the promises, so a version still
+		// current after the promise is made will break it when it is replaced
+		Version cur = versions.get(key);
+		if (cur == null || cur.number != version)
+			return 0;
+		return PROMISE_LEASE;
+	}
+	
+	/*
+	 * Call back the proxies holding a promise on the file, in parallel. The proxies which
+	 * cannot be called back (in time) see the change when their lease expires.
+	 * stamp is the version committed, or a new version number if the file was unlinked
+	 */
+	private static void breakPromises(String path, long stamp) {
+		List<Long> holders = promises.breakPromises(path, stamp, System.currentTimeMillis());
+		if (holders.isEmpty())
+			return;
+		List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+		holders.forEach(id -> {
+			CacheCallback callback = callbacks.get(id);
+			if (callback == null)
+				return;
+			calls.add(() -> {
+				try {
+					callback.breakPromise(path, stamp);
+				} catch (RemoteException e) {
+					// the proxy is gone. No more promises for it
+					callbacks.remove(id, callback);
+				}
+				return null;
+			});
+		});
+		if (calls.isEmpty())
+			return;
+		try {
+			callbackWorkers.invokeAll(calls, CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Validate the versions of many files at once. Each file carries its name and the
+	 * version the client has. return the files whose current version differs, with their
+	 * new version, size and number of blocks, or with an error code (ENOENT if the file
+	 * no longer exists)
+	 */
+	public List<FileCache> validate(List<FileCache> files) throws RemoteException {
+		ArrayList<FileCache> changed = new ArrayList<FileCache>();
+		for (FileCache file : files) {
+			String path = file.getServerFileName();
+			if (!checkInServerDir(path)) {
+				file.setErrorCode(FileHandling.Errors.EPERM);
+				changed.add(file);
+				continue;
+			}
+			try {
+				Version v = currentVersion(path);
+				if (v == null) {
+					file.setErrorCode(FileHandling.Errors.ENOENT);
+					changed.add(file);
+					continue;
+				}
+				if (v.number == file.getVersion())
+					continue;
+				file.setVersion(v.number);
+				file.setFileSize(v.size);
+				file.setNrOfBlocks((int) ((v.size + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE));
+			} catch (IOException e) {
+				// Error opening the file (or the file is a directory)
+				file.setErrorCode(-1);
+			}
+			changed.add(file);
+		}
+		return changed;
+	}
+	
+	 // returns the current version of the file on the server, 0 if the file does not exist
+	public long getVersion(String path) throws RemoteException{
+		if (!checkInServerDir(path))
+			return 0;
+		try {
+			Version v = currentVersion(path);
+			return v == null ? 0 : v.number;
+		} catch (IOException e) {
+			// Error opening the file
+			return 0;
+		}
+	}
+	
+	/*
+	 * Get the current version of the file, without opening it. The version is created
+	 * when the file is seen for the first time or has been replaced by other means than
+	 * the server.
+	 * return the version, null if the file does not exist
+	 */
+	private static Version currentVersion(String path) throws IOException {
+		String key = Paths.get(path).normalize().toString();
+		Path file = Paths.get(createPathName(dir, path));
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			attrs = null;
+		}
+		
+		// the current version is read without waiting for the commits of the file
+		Version v = versions.get(key);
+		if (v != null && attrs != null && v.matches(attrs))
+			return v;
+		
+		try {
+			return versions.compute(key, (k, cur) -> {
+				try {
+					BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+					if (cur == null || !cur.matches(a)) {
+						Version created = newVersion(key, file, a);
+						if (cur != null)
+							cur.retire();
+						cur = created;
+					}
+					return cur;
+				} catch (NoSuchFileException e) {
+					// the file has been deleted
+					if (cur != null)
+						cur.retire();
+					return null;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/*
+	 * Pin the current version of the file for a session, opening its file.
+	 * return the pinned version, null if the file does not exist
+	 */
+	private static Version pinVersion(String path) throws IOException {
+		// the pin fails if the version is replaced meanwhile. Retry with the new version
+		for (int i = 0; i < PIN_RETRIES; i++) {
+			Version v = currentVersion(path);
+			if (v == null || v.pin())
+				return v;
+		}
+		throw new IOException("File " + path + " keeps changing");
+	}
+	
+	/*
+	 * Create a new version of the file (key is its normalized name) with the given
+	 * attributes. The file is not opened. A file unchanged since the version table
+	 * recorded it keeps its version number across the restarts of the server
+	 */
+	private static Version newVersion(String key, Path file, BasicFileAttributes attrs) throws IOException {
+		if (!attrs.isRegularFile())
+			throw new IOException("Not a regular file " + file);
+		Version v = new Version();
+		v.path = file;
+		v.size = attrs.size();
+		v.mtime = attrs.lastModifiedTime().toMillis();
+		v.fileKey = attrs.fileKey();
+		String fileKey = v.fileKey == null ? "" : v.fileKey.toString();
+		
+		VersionTable.Entry known = versionTable == null ? null : versionTable.get(key);
+		if (known != null && known.mtime == v.mtime && known.size == v.size && known.fileKey.equals(fileKey)) {
+			v.number = known.number;
+			return v;
+		}
+		v.number = lastVersion.incrementAndGet();
+		if (versionTable != null) {
+			VersionTable.Entry e = new VersionTable.Entry();
+			e.number = v.number;
+			e.mtime = v.mtime;
+			e.size = v.size;
+			e.fileKey = fileKey;
+			versionTable.put(key, e);
+		}
+		return v;
 	}
 	
 	/*
@@ -96,175 +454,356 @@ public class Server extends UnicastRemoteObject implements RmiInterface {
 			}
 		}
 		
-		 /* The session should be opened only when the file is either:
-		 * 	1. Not in use currently
-		 *  2. Is in use but is only being sent to other clients, i.e. is not being updated
-		 */
-		synchronized(lock){
-			// file is not in use
-			if(!sessionFileLock.containsKey(fileName))
-				sessionFileLock.put(fileName, 1);
-			else{
-				//block till the file is freed from writing by the other client
-				while(sessionFileLock.get(fileName) == -1){
-					// File is being updated
-				}
-				sessionFileLock.put(fileName, sessionFileLock.get(fileName)+1);			
+		// Pin the current version of the file for the blocks to be read in the session
+		long size;
+		try {
+			ReadSession session = new ReadSession();
+			session.version = pinVersion(fileName);
+			if (session.version == null) {
+				// the file was unlinked meanwhile
+				file.setErrorCode(FileHandling.Errors.ENOENT);
+				return file;
 			}
+			size = session.version.size;
+			long id = sessionId.incrementAndGet();
+			readSessions.put(id, session);
+			file.setSessionId(id);
+			// Set the version of the server file in the client file object
+			file.setVersion(session.version.number);
+			// Promise to call back the proxy if the version pinned is replaced
+			file.setLease(promise(fileName, file.getClientId(), session.version.number));
+		} catch (IOException e) {
+			// Error opening the file
+			file.setErrorCode(-1);
+			return file;
 		}
-		// Set the last modified value of the server file in the client file object
-		file.setLastModifiedAt(f.lastModified());
 		
 		// Set the server file size on the client's file object
-		long size = f.length();
 		file.setFileSize(size);
 		
 		// Calculate the number of blocks required to transmit the file over the network.
-		int nrOfBlocks = 0;
-		// Local map to associate the block number with its size
-		ConcurrentHashMap<Integer, Integer> blockSize = new ConcurrentHashMap<Integer, Integer>();
-		if (size > MAX_BLOCK_SIZE) {
-			while (size > 0) {
-				nrOfBlocks++;
-				if (size > MAX_BLOCK_SIZE) {
-					size -= MAX_BLOCK_SIZE;
-					blockSize.put(nrOfBlocks, MAX_BLOCK_SIZE);
-				} else {
-					blockSize.put(nrOfBlocks, (int) size);
-					size = 0;
-				}
-			}
-		} else {
-			// if the file is of size 0, it has no blocks.
-			nrOfBlocks = size == 0 ? 0 : 1;
-			blockSize.put(nrOfBlocks, (int) size);
-		}
-		
-		// Set number of blocks and block sizes on the client file object
-		file.setNrOfBlocks(nrOfBlocks);
-		file.setBlockSize(blockSize);
+		// All blocks are MAX_BLOCK_SIZE long except the last one. If the file is of size 0, it has no blocks.
+		file.setNrOfBlocks((int) ((size + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE));
 		return file;
 	} //end openSession
 	
 	/*
-	 * Close the session. Release the file from use
+	 * Close the session. Unpin the version read; it is closed if a newer version was
+	 * committed (or the file unlinked) meanwhile
 	 */
-	public synchronized void closeSession(String path) throws RemoteException{
-		int counter = sessionFileLock.get(path);
-		counter -= 1;
-		// if the file counter reaches 0, remove it from the map
-		if (counter == 0)
-			sessionFileLock.remove(path);
-		else
-			sessionFileLock.put(path, counter);
+	public void closeSession(long handle) throws RemoteException{
+		ReadSession session = readSessions.remove(handle);
+		if (session == null)
+			// session is not open
+			return;
+		session.version.unpin();
 	}
 	
 	/*
-	 * Get file from the root dir and send it to the proxy. The file block
-	 * according to what has been requested would be sent to the proxy and not
-	 * the whole file
+	 * Get a block of the file from the root dir and send it to the proxy. Only the
+	 * requested range of the file opened by the session is sent, not the whole file.
+	 * The block is read at its offset; the returned array is filled directly, without
+	 * intermediate copies
 	 */
-	public synchronized byte[] getFile(int blockNumber, FileCache file) throws RemoteException {
-		File f = new File(createPathName(dir, file.getServerFileName()));
+	public byte[] getBlock(long handle, long offset, int length) throws RemoteException {
 		// File existence has already been checked in openSession().
-		// File could not be unlinked till the file is sent
+		// The pinned version keeps the contents even if the file is replaced or unlinked
+		ReadSession session = readSessions.get(handle);
+		if (session == null)
+			// session is not open
+			return null;
 		
+		// only whole blocks inside the file can be requested
+		if (offset < 0 || length < 0 || length > MAX_BLOCK_SIZE)
+			return null;
+		Version version = session.version;
+		length = (int) Math.min(length, Math.max(version.size - offset, 0));
 		try {		
-			FileInputStream fIn = new FileInputStream(f);
-			ConcurrentHashMap<Integer, Integer> blockSize = file.getBlockSize();
-			// skip blocksize bytes for the blocks before requested block
-			for (int i = 1; i < blockNumber; i++) {
-				fIn.skip(blockSize.get(i));
+			byte[] bytes = new byte[length];
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining()) {
+				// positional read. Sessions share nothing, so blocks are read in parallel
+				if (version.channel.read(buf, offset + buf.position()) < 0)
+					break;
 			}
-			byte[] bytes = new byte[blockSize.get(blockNumber)];
-			fIn.read(bytes);
-			fIn.close();
 			return bytes;
-		} catch (FileNotFoundException e) {
-			// exception would not be raise
 		} catch (IOException e) {
 			// error reading
 			return null;
 		}
-
-		return null;
-	} //end getFile
+	} //end getBlock
+	
+	/*
+	 * Set the signature of the (older) version of the file the client has, so that the
+	 * client can fetch the version of the session as deltas against it (getDelta).
+	 * return 0 on success, -1 if the session is not open
+	 */
+	public int setSignature(long handle, DeltaSync.Signature sig) throws RemoteException {
+		ReadSession session = readSessions.get(handle);
+		// the signature comes from the client. A malformed one is refused
+		if (session == null || !DeltaSync.isValid(sig))
+			return -1;
+		// the signature is published after the index of its blocks
+		session.clientBlocks = DeltaSync.index(sig);
+		session.clientSignature = sig;
+		return 0;
+	}
+	
+	/*
+	 * Get a block of the file as a delta against the version of the client (see DeltaSync):
+	 * the bytes not found in the version of the client, and references to its blocks.
+	 * The ops write the block from its offset. Blocks are encoded independently, so they
+	 * can be requested in any order and in parallel.
+	 * return null if the session has no signature or on error
+	 */
+	public byte[] getDelta(long handle, long offset, int length) throws RemoteException {
+		ReadSession session = readSessions.get(handle);
+		if (session == null || session.clientSignature == null)
+			return null;
+		if (offset < 0 || length < 0 || length > MAX_BLOCK_SIZE)
+			return null;
+		Version version = session.version;
+		length = (int) Math.min(length, Math.max(version.size - offset, 0));
+		ByteArrayOutputStream ops = new ByteArrayOutputStream();
+		try {
+			DeltaSync.encode((dst, position) -> version.channel.read(dst, offset + position), length,
+					session.clientSignature, session.clientBlocks, page -> ops.write(page));
+		} catch (IOException e) {
+			// error reading
+			return null;
+		}
+		return ops.toByteArray();
+	}
 
 
 	/*
-	 * 	Opens a session on server for writing to the given file
+	 * 	Opens a session on server for writing size bytes to the given file. The blocks are
+	 * 	staged in a temporary file preallocated to size bytes, next to the file. The file
+	 * 	itself stays readable by the other clients till the session is closed.
+	 * 	return the handle of the session, or the error creating the temporary file
 	 */
-	public synchronized void openSessionForWrite(String path) throws RemoteException {
-		// the file to be written should not be in use currently. By use, it is meant
-		// 1. file is not being sent to other clients
-		// 2. file is not being updated currently
-		while(sessionFileLock.containsKey(path)){
-			//File currently under use. Wait
-		}
-		
-		//File write lock obtained		
-		sessionFileLock.put(path, -1);
+	public long openSessionForWrite(String path, long size) throws RemoteException {
+		if (!checkInServerDir(path) || size < 0)
+			return FileHandling.Errors.EPERM;
+		// versions are kept against the normalized file name
+		path = Paths.get(path).normalize().toString();
 		
-		File file = new File(createPathName(dir, path));
-		if(file.exists())
-			// Delete original file before updating
-			file.delete();
-		
-		file = new File(createPathName(dir, path));
+		long id = sessionId.incrementAndGet();
+		WriteSession session = new WriteSession();
+		session.path = path;
+		session.size = size;
 		try {
-			file.createNewFile();
+			// the temporary file is in the directory of the file, so that the rename is atomic.
+			// It is named after the session, so the uploads of a file do not share it
+			Path target = Paths.get(createPathName(dir, path));
+			session.staging = target.resolveSibling(STAGING_PREFIX + id + ".tmp");
+			RandomAccessFile rf = new RandomAccessFile(session.staging.toFile(), "rw");
+			session.channel = rf.getChannel();
+			rf.setLength(0);
+			rf.setLength(size);
 		} catch (IOException e) {
-			// unable to create new file
+			// unable to create the temporary file
+			discard(session);
+			return -1;
 		}
-		
+		writeSessions.put(id, session);
+		return id;
 	}
 
+	/*
+	 * 	Opens a session on server for a delta upload of size bytes to the given file. The
+	 * 	delta is computed against the given version of the file, which must be its current
+	 * 	version; the version is pinned till the session is closed.
+	 * 	return the handle of the session, ENOENT if the version is not the current one, or
+	 * 	the error creating the temporary file
+	 */
+	public long openSessionForDelta(String path, long size, long baseVersion) throws RemoteException {
+		if (!checkInServerDir(path))
+			return FileHandling.Errors.EPERM;
+		Version base;
+		try {
+			base = pinVersion(path);
+		} catch (IOException e) {
+			return -1;
+		}
+		if (base == null)
+			return FileHandling.Errors.ENOENT;
+		if (base.number != baseVersion) {
+			// the file was updated since the client got it. The client sends the whole file
+			base.unpin();
+			return FileHandling.Errors.ENOENT;
+		}
+		long handle = openSessionForWrite(path, size);
+		if (handle < 0) {
+			base.unpin();
+			return handle;
+		}
+		writeSessions.get(handle).base = base;
+		return handle;
+	}
+	
+	/*
+	 * Get the signature of the version a delta upload is computed against.
+	 * return null if the session is not a delta upload or the version could not be read
+	 */
+	public DeltaSync.Signature getSignature(long handle) throws RemoteException {
+		WriteSession session = writeSessions.get(handle);
+		if (session == null || session.base == null)
+			return null;
+		try {
+			return session.base.signature();
+		} catch (IOException e) {
+			// error reading the version
+			return null;
+		}
+	}
+	
+	/*
+	 * Apply a page of the delta of the session. The pages are applied in the order they
+	 * are sent; a session sends them one at a time.
+	 * return 0 on success, -1 on error
+	 */
+	public int writeDelta(long handle, byte[] page) throws RemoteException {
+		WriteSession session = writeSessions.get(handle);
+		if (session == null || session.base == null)
+			return -1;
+		try {
+			session.position = DeltaSync.apply(page, session.base.channel, session.channel, session.position);
+		} catch (IOException e) {
+			// invalid delta or error writing
+			return -1;
+		}
+		return 0;
+	}
+	
 	/* 
-	 * Update the file 
+	 * Write a block of the file at its offset. Blocks of a session may be written
+	 * in any order and in parallel.
+	 * return 0 on success, -1 on error
 	 */
-	public synchronized void writeFile(byte[] bytes, String path) throws RemoteException {
+	public int writeBlock(long handle, long offset, byte[] bytes) throws RemoteException {
+		WriteSession session = writeSessions.get(handle);
+		if (session == null || offset < 0 || bytes.length > MAX_BLOCK_SIZE)
+			// session is not open or invalid block
+			return -1;
 		try {
-			FileOutputStream fOut = new FileOutputStream(createPathName(dir, path), true);
-			fOut.write(bytes);
-			fOut.close();
-		} catch (FileNotFoundException e) {
-			// exception would not raised. It is not possible to unlink the file while it is being updated
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining())
+				session.channel.write(buf, offset + buf.position());
 		} catch (IOException e) {
 			// error in writing
-		}	
+			return -1;
+		}
+		return 0;
 	} 
 	
 	/*
-	 * Close the session opened for writing. Update the last modified of the file
+	 * Close the session opened for writing. The temporary file replaces the file with an
+	 * atomic rename and becomes its current version; the read sessions already open keep
+	 * reading the versions they pinned. A delta upload is committed only if the delta
+	 * rebuilt the file to the size declared.
+	 * return the version committed, -1 if the file could not be replaced
 	 */
-	public synchronized void closeSessionForWrite(String path) throws RemoteException {
-		sessionFileLock.remove(path);
+	public long closeSessionForWrite(long handle) throws RemoteException {
+		WriteSession session = writeSessions.remove(handle);
+		if (session == null)
+			// session is not open
+			return -1;
+		if (session.base != null && session.position != session.size) {
+			// delta is short or too long: the file would be corrupted
+			discard(session);
+			return -1;
+		}
+		try {
+			session.channel.close();
+		} catch (IOException e) {
+			// Error closing the file
+			discard(session);
+			return -1;
+		}
 		
-		File file = new File(createPathName(dir, path));
-		file.setLastModified(System.currentTimeMillis());
+		// The commits and unlinks of the file are serialized by compute()
+		Path target = Paths.get(createPathName(dir, session.path));
+		Version committed;
+		try {
+			committed = versions.compute(session.path, (k, cur) -> {
+				try {
+					session.staging.toFile().setLastModified(System.currentTimeMillis());
+					Files.move(session.staging, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+					Version created = newVersion(session.path, target, Files.readAttributes(target, BasicFileAttributes.class));
+					if (cur != null)
+						cur.retire();
+					return created;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			// unable to replace the file
+			discard(session);
+			return -1;
+		}
+		if (session.base != null)
+			session.base.unpin();
+		// the proxies caching the file are called back before the writer is answered
+		breakPromises(session.path, committed.number);
+		return committed.number;
+	}
+	
+	/*
+	 * Abandon the session opened for writing. The file is not modified
+	 */
+	public void abortSessionForWrite(long handle) throws RemoteException {
+		WriteSession session = writeSessions.remove(handle);
+		if (session != null)
+			discard(session);
+	}
+	
+	// close and delete the temporary file of a write session which is not committed
+	private static void discard(WriteSession session) {
+		if (session.base != null)
+			session.base.unpin();
+		try {
+			if (session.channel != null)
+				session.channel.close();
+			if (session.staging != null)
+				Files.deleteIfExists(session.staging);
+		} catch (IOException e) {
+			// Error deleting the file
+		}
 	}
 
 	/*
 	 * Unlink the file from the server.
-	 * Unlink should be done only when the file is not in use. 
-	 * If the file is in use, wait to unlink
+	 * The read sessions of the file keep reading the versions they pinned
 	 */
-	public synchronized int unlink(String path){
+	public int unlink(String path){
 		boolean inDir = checkInServerDir(path);
 		if(inDir){
-			while(sessionFileLock.containsKey(path)){
-				// File currently under use. Wait
-			}
-			Path pathname = Paths.get(path);
-			try {
-				Files.delete(pathname);
-			} catch (NoSuchFileException e) {
-				// No such file
-				return FileHandling.Errors.ENOENT;
-			} catch (SecurityException | IOException e) {
-				// Permission denied
-				return FileHandling.Errors.EPERM;
-			}
+			// versions are kept against the normalized file name
+			path = Paths.get(path).normalize().toString();
+			Path pathname = Paths.get(createPathName(dir, path));
+			int[] err = new int[1];
+			versions.compute(path, (k, cur) -> {
+				try {
+					Files.delete(pathname);
+				} catch (NoSuchFileException e) {
+					// No such file
+					err[0] = FileHandling.Errors.ENOENT;
+				} catch (SecurityException | IOException e) {
+					// Permission denied
+					err[0] = FileHandling.Errors.EPERM;
+					return cur;
+				}
+				if (cur != null)
+					cur.retire();
+				if (versionTable != null)
+					versionTable.remove(k);
+				return null;
+			});
+			if (err[0] != FileHandling.Errors.EPERM)
+				breakPromises(path, lastVersion.incrementAndGet());
+			return err[0];
 		}
 		return 0;
 	}
@@ -321,21 +860,65 @@ public class Server extends UnicastRemoteObject implements RmiInterface {
 	/*
 	 * Check whether the requested file is in the server directory or not
 	 */
-	private boolean checkInServerDir(String fileName) {
+	private static boolean checkInServerDir(String fileName) {
 		String filePath = createPathName(dir, fileName);
 		
 		// Get the absolute server directory
 		Path dirAbsPath = Paths.get(dir).normalize().toAbsolutePath();
 		// Get the absolute file path
 		Path fileAbsPath = Paths.get(filePath).normalize().toAbsolutePath();
+		// the version table is not a file of the clients
+		Path tableAbsPath = dirAbsPath.resolve(VersionTable.TABLE_NAME);
+		if (fileAbsPath.startsWith(tableAbsPath) || fileAbsPath.toString().equals(tableAbsPath + ".tmp"))
+			return false;
+		// nor are the temporary files of the uploads
+		if (isStagingFile(fileAbsPath))
+			return false;
 		return fileAbsPath.toString().contains(dirAbsPath.toString());
 	}
 	
+	// Check whether the file is the temporary file of an upload
+	private static boolean isStagingFile(Path file) {
+		Path name = file.getFileName();
+		return name != null && name.toString().startsWith(STAGING_PREFIX);
+	}
+	
+	/*
+	 * Delete the temporary files of the uploads left in the server directory by a crash
+	 * of the server. They are preallocated to the size of the upload
+	 */
+	private static void deleteStagingFiles() {
+		try (Stream<Path> files = Files.walk(Paths.get(dir))) {
+			files.filter(f -> isStagingFile(f) && Files.isRegularFile(f)).forEach(f -> {
+				try {
+					Files.delete(f);
+				} catch (IOException e) {
+					System.err.println("Failed to delete " + f + " " + e);
+				}
+			});
+		} catch (IOException | UncheckedIOException e) {
+			System.err.println("Failed to delete the temporary files of the uploads " + e);
+		}
+	}
+	
 	public static void main(String[] args) {
 
 		// Check for arguments validity
 		check_args(args);
 		
+		// no upload survives a restart
+		deleteStagingFiles();
+		
+		// load the version numbers of the files
+		versionTable = new VersionTable(dir);
+		try {
+			long last = versionTable.load();
+			lastVersion.accumulateAndGet(last, Math::max);
+		} catch (IOException e) {
+			System.err.println("Failed to load the version table " + e);
+			versionTable = null;
+		}
+		
 		Server svr = null;
 		int port = Integer.parseInt(args[0]);
 		try {
@@ -0,0 +1,93 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Delta uploads to the server (openSessionForDelta): the file is committed only when
+ * it is rebuilt to the size declared.
+ */
+
+public class ServerDeltaUploadTest {
+
+	static String serverDir = "tests_delta_upload";
+	static String port = "1163";
+	static final int BS = DeltaSync.BLOCK_SIZE;
+	static Server server = null;
+
+	@BeforeClass
+	public static void setupServer() throws IOException {
+		TestFiles.clean(serverDir);
+		Server.main(new String[] {port, serverDir});
+		server = new Server();
+	}
+
+	// the whole delta rebuilds the file, which is committed
+	@Test
+	public void completeDelta() throws IOException {
+		byte[] old = TestFiles.random(1, 4 * BS);
+		byte[] now = TestFiles.random(2, 6 * BS);
+		System.arraycopy(old, 0, now, BS, old.length);
+		Files.write(Paths.get(serverDir, "a"), old);
+
+		long handle = openDelta("a", now.length);
+		for (byte[] page : delta(handle, now))
+			Assert.assertEquals(0, server.writeDelta(handle, page));
+		Assert.assertTrue(server.closeSessionForWrite(handle) > 0);
+		Assert.assertArrayEquals(now, Files.readAllBytes(Paths.get(serverDir, "a")));
+	}
+
+	// a delta short of the size declared, or sent twice, is not committed
+	@Test
+	public void wrongLengthDiscarded() throws IOException {
+		byte[] old = TestFiles.random(3, 4 * BS);
+		byte[] now = TestFiles.random(4, 4 * BS);
+		Files.write(Paths.get(serverDir, "b"), old);
+		long before = server.getVersion("b");
+
+		// the file declared is longer than the delta
+		long handle = openDelta("b", now.length + 10);
+		for (byte[] page : delta(handle, now))
+			Assert.assertEquals(0, server.writeDelta(handle, page));
+		Assert.assertEquals(-1, server.closeSessionForWrite(handle));
+
+		// the delta is applied twice
+		handle = openDelta("b", now.length);
+		List<byte[]> pages = delta(handle, now);
+		for (int i = 0; i < 2; i++)
+			for (byte[] page : pages)
+				Assert.assertEquals(0, server.writeDelta(handle, page));
+		Assert.assertEquals(-1, server.closeSessionForWrite(handle));
+
+		Assert.assertEquals(before, server.getVersion("b"));
+		Assert.assertArrayEquals(old, Files.readAllBytes(Paths.get(serverDir, "b")));
+		for (File f : new File(serverDir).listFiles())
+			Assert.assertFalse(f.getName(), f.getName().startsWith(".upload_"));
+	}
+
+	private static long openDelta(String path, long size) throws IOException {
+		long handle = server.openSessionForDelta(path, size, server.getVersion(path));
+		Assert.assertTrue(handle > 0);
+		return handle;
+	}
+
+	// encode the file against the signature of the session
+	private static List<byte[]> delta(long handle, byte[] now) throws IOException {
+		List<byte[]> pages = new ArrayList<byte[]>();
+		DeltaSync.encode((ByteBuffer buf, long position) -> {
+			if (position >= now.length)
+				return -1;
+			int n = (int) Math.min(buf.remaining(), now.length - position);
+			buf.put(now, (int) position, n);
+			return n;
+		}, now.length, server.getSignature(handle), page -> pages.add(page));
+		return pages;
+	}
+}
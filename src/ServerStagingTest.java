@@ -0,0 +1,58 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Temporary files of the uploads (staging files) in the server directory.
+ */
+
+public class ServerStagingTest {
+
+	static String serverDir = "tests_staging";
+	static String port = "1162";
+	static Server server = null;
+
+	@BeforeClass
+	public static void setupServer() throws IOException {
+		TestFiles.clean(serverDir);
+		// staging files left by a crash of the server
+		Files.write(Paths.get(serverDir, ".upload_7.tmp"), new byte[100]);
+		Files.createDirectories(Paths.get(serverDir, "d"));
+		Files.write(Paths.get(serverDir, "d", ".upload_8.tmp"), new byte[100]);
+		Files.write(Paths.get(serverDir, "a.txt"), TestFiles.content('a', 10));
+		Server.main(new String[] {port, serverDir});
+		server = new Server();
+	}
+
+	// the staging files left by a crash are deleted at startup
+	@Test
+	public void leftoverFilesDeleted() {
+		Assert.assertFalse(new File(serverDir, ".upload_7.tmp").exists());
+		Assert.assertFalse(new File(serverDir, "d/.upload_8.tmp").exists());
+		Assert.assertTrue(new File(serverDir, "a.txt").exists());
+	}
+
+	// the clients can neither see nor unlink the staging file of an upload
+	@Test
+	public void stagingFileHidden() throws IOException {
+		long handle = server.openSessionForWrite("b.txt", 10);
+		Assert.assertTrue(handle > 0);
+		String staging = ".upload_" + handle + ".tmp";
+		Assert.assertTrue(new File(serverDir, staging).exists());
+		Assert.assertEquals(0, server.getVersion(staging));
+		Assert.assertEquals(0, server.getVersion("d/../" + staging));
+		server.unlink(staging);
+		Assert.assertTrue(new File(serverDir, staging).exists());
+		Assert.assertEquals(FileHandling.Errors.EPERM, server.openSessionForWrite(staging, 10));
+
+		Assert.assertEquals(0, server.writeBlock(handle, 0, TestFiles.content('b', 10)));
+		Assert.assertTrue(server.closeSessionForWrite(handle) > 0);
+		Assert.assertTrue(server.getVersion("b.txt") > 0);
+		Assert.assertFalse(new File(serverDir, staging).exists());
+	}
+}
@@ -0,0 +1,36 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls for the same key into one.
+ * The first caller for a key runs the loader; callers arriving while it runs wait
+ * for the same result instead of running the loader again. Once the call completes
+ * the key is forgotten, so a later call runs the loader again.
+ */
+
+public class SingleFlight<T> {
+	
+	// calls in flight against their key
+	private ConcurrentHashMap<String, CompletableFuture<T>> calls = new ConcurrentHashMap<String, CompletableFuture<T>>();
+	
+	// run the loader for the key, or wait for the result of the call already in flight
+	public T call(String key, Supplier<T> loader) {
+		CompletableFuture<T> call = new CompletableFuture<T>();
+		CompletableFuture<T> inFlight = calls.putIfAbsent(key, call);
+		if (inFlight != null)
+			// another caller is loading the key. Share its result
+			return inFlight.join();
+		
+		try {
+			T result = loader.get();
+			call.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			call.completeExceptionally(e);
+			throw e;
+		} finally {
+			calls.remove(key, call);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Collapsing of the concurrent calls for the same key (SingleFlight).
+ */
+
+public class SingleFlightTest {
+
+	// the callers arriving while the loader runs share its result
+	@Test
+	public void concurrentCallsShareResult() throws InterruptedException {
+		SingleFlight<String> flight = new SingleFlight<String>();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		List<String> results = new ArrayList<String>();
+		Thread first = new Thread(() -> {
+			String r = flight.call("a", () -> {
+				loads.incrementAndGet();
+				loading.countDown();
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					// result is returned anyway
+				}
+				return "a1";
+			});
+			synchronized (results) {
+				results.add(r);
+			}
+		});
+		first.start();
+		loading.await();
+		List<Thread> waiters = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			Thread t = new Thread(() -> {
+				String r = flight.call("a", () -> {
+					loads.incrementAndGet();
+					return "other";
+				});
+				synchronized (results) {
+					results.add(r);
+				}
+			});
+			t.start();
+			waiters.add(t);
+		}
+		// another key is not blocked by the call in flight
+		Assert.assertEquals("b1", flight.call("b", () -> "b1"));
+		TimeUnit.MILLISECONDS.sleep(100);
+		done.countDown();
+		first.join(5000);
+		for (Thread t : waiters)
+			t.join(5000);
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(List.of("a1", "a1", "a1", "a1", "a1"), results);
+	}
+
+	// the key is forgotten once its call completes
+	@Test
+	public void completedCallNotReused() {
+		SingleFlight<Integer> flight = new SingleFlight<Integer>();
+		Assert.assertEquals(Integer.valueOf(1), flight.call("a", () -> 1));
+		Assert.assertEquals(Integer.valueOf(2), flight.call("a", () -> 2));
+	}
+
+	// a failure of the loader is thrown to the waiters too, and is not kept
+	@Test
+	public void failureShared() throws InterruptedException {
+		SingleFlight<String> flight = new SingleFlight<String>();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Thread first = new Thread(() -> {
+			try {
+				flight.call("a", () -> {
+					loading.countDown();
+					try {
+						done.await();
+					} catch (InterruptedException e) {
+						// failure is thrown anyway
+					}
+					throw new IllegalStateException("load failed");
+				});
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		});
+		first.start();
+		loading.await();
+		Throwable[] thrown = new Throwable[1];
+		Thread waiter = new Thread(() -> {
+			try {
+				flight.call("a", () -> "other");
+			} catch (CompletionException e) {
+				thrown[0] = e.getCause();
+			}
+		});
+		waiter.start();
+		TimeUnit.MILLISECONDS.sleep(100);
+		done.countDown();
+		first.join(5000);
+		waiter.join(5000);
+		Assert.assertTrue(thrown[0] instanceof IllegalStateException);
+		Assert.assertEquals("a2", flight.call("a", () -> "a2"));
+	}
+}
@@ -0,0 +1,32 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Fixtures shared by the tests: test directories and file contents.
+ */
+
+public class TestFiles {
+
+	// create the directory, or delete the files in it
+	public static void clean(String dir) {
+		File f = new File(dir);
+		f.mkdirs();
+		for (File file : f.listFiles())
+			file.delete();
+	}
+
+	// content of the given length made of a single character
+	public static byte[] content(char c, int length) {
+		byte[] b = new byte[length];
+		Arrays.fill(b, (byte) c);
+		return b;
+	}
+
+	// random content of the given length, the same for the same seed
+	public static byte[] random(long seed, int length) {
+		byte[] b = new byte[length];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+}
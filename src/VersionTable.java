@@ -0,0 +1,118 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Append-only table of the version numbers given to the files of the server, so that
+ * the files which did not change while the server was down keep their version across
+ * a restart. Otherwise every proxy would fetch its whole cache again.
+ *
+ * Record types:
+ *	PUT		: file name, version number, last modified time, size, file key
+ *	REMOVE	: file name
+ *
+ * The last record of a file wins. The table is compacted like the cache journal (see
+ * AppendOnlyLog). After a write error the server keeps working, but the versions of
+ * the files are renumbered on the next restart.
+ */
+
+public class VersionTable extends AppendOnlyLog {
+
+	// name of the table in the server directory
+	public static final String TABLE_NAME = ".server_versions";
+
+	private static final byte PUT = 'P';
+	private static final byte REMOVE = 'R';
+
+	// version of a file, identified by the attributes of the file
+	public static class Entry {
+		public long number;
+		public long mtime;
+		public long size;
+		public String fileKey;		// file key of the file system, "" if none
+	}
+
+	// last version of every file
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	// constructor. The table is stored in the given server directory
+	public VersionTable(String dir) {
+		super(new File(dir, TABLE_NAME));
+	}
+
+	/*
+	 * Read the table, compact it and open it for appending.
+	 * return the highest version number of the table, 0 if it is empty
+	 */
+	public synchronized long load() throws IOException {
+		entries.clear();
+		replay();
+		long max = 0;
+		for (Entry e : entries.values())
+			max = Math.max(max, e.number);
+		return max;
+	}
+
+	// get the last version recorded for the file, null if none
+	public synchronized Entry get(String path) {
+		return entries.get(path);
+	}
+
+	// record the version of a file
+	public synchronized void put(String path, Entry e) {
+		entries.put(path, e);
+		append(out -> writePut(out, path, e));
+	}
+
+	// forget the file (unlinked)
+	public synchronized void remove(String path) {
+		if (entries.remove(path) == null)
+			return;
+		append(out -> {
+			out.writeByte(REMOVE);
+			out.writeUTF(path);
+		});
+	}
+
+	// replay a record
+	protected boolean readRecord(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == PUT) {
+			String path = in.readUTF();
+			Entry e = new Entry();
+			e.number = in.readLong();
+			e.mtime = in.readLong();
+			e.size = in.readLong();
+			e.fileKey = in.readUTF();
+			entries.put(path, e);
+		} else if (type == REMOVE) {
+			entries.remove(in.readUTF());
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	// write the live entries as PUT records
+	protected void writeLive(DataOutputStream out) throws IOException {
+		for (HashMap.Entry<String, Entry> e : entries.entrySet())
+			writePut(out, e.getKey(), e.getValue());
+	}
+
+	// number of live entries
+	protected int liveEntries() {
+		return entries.size();
+	}
+
+	// write a PUT record
+	private static void writePut(DataOutputStream out, String path, Entry e) throws IOException {
+		out.writeByte(PUT);
+		out.writeUTF(path);
+		out.writeLong(e.number);
+		out.writeLong(e.mtime);
+		out.writeLong(e.size);
+		out.writeUTF(e.fileKey);
+	}
+}
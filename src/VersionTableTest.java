@@ -0,0 +1,81 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Persistence of the version numbers of the server files (VersionTable).
+ */
+
+public class VersionTableTest {
+
+	static String dir = "tests_versions";
+
+	// the last version of every file is kept across a reload; unlinked files are forgotten
+	@Test
+	public void versionsSurviveReload() throws IOException {
+		TestFiles.clean(dir);
+		VersionTable table = new VersionTable(dir);
+		Assert.assertEquals(0, table.load());
+		table.put("a", entry(5, 100, 10, "k1"));
+		table.put("b", entry(6, 200, 20, ""));
+		table.put("a", entry(7, 300, 30, "k2"));
+		table.put("c", entry(8, 400, 40, "k3"));
+		table.remove("c");
+
+		VersionTable reloaded = new VersionTable(dir);
+		Assert.assertEquals(7, reloaded.load());
+		VersionTable.Entry a = reloaded.get("a");
+		Assert.assertEquals(7, a.number);
+		Assert.assertEquals(300, a.mtime);
+		Assert.assertEquals(30, a.size);
+		Assert.assertEquals("k2", a.fileKey);
+		Assert.assertEquals(6, reloaded.get("b").number);
+		Assert.assertNull(reloaded.get("c"));
+	}
+
+	// a record truncated by a crash is ignored
+	@Test
+	public void truncatedRecordIgnored() throws IOException {
+		TestFiles.clean(dir);
+		VersionTable table = new VersionTable(dir);
+		table.load();
+		table.put("a", entry(1, 1, 1, "k"));
+		table.put("b", entry(2, 2, 2, "k"));
+		File f = new File(dir, VersionTable.TABLE_NAME);
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.setLength(rf.length() - 3);
+		}
+
+		VersionTable reloaded = new VersionTable(dir);
+		Assert.assertEquals(1, reloaded.load());
+		Assert.assertNotNull(reloaded.get("a"));
+		Assert.assertNull(reloaded.get("b"));
+	}
+
+	// the table is compacted: rewriting the same file does not grow it without bound
+	@Test
+	public void compaction() throws IOException {
+		TestFiles.clean(dir);
+		VersionTable table = new VersionTable(dir);
+		table.load();
+		for (int i = 1; i <= 5000; i++)
+			table.put("a", entry(i, i, i, "k"));
+		File f = new File(dir, VersionTable.TABLE_NAME);
+		Assert.assertTrue("table not compacted: " + f.length(), f.length() < 2000 * 40);
+
+		VersionTable reloaded = new VersionTable(dir);
+		Assert.assertEquals(5000, reloaded.load());
+	}
+
+	private static VersionTable.Entry entry(long number, long mtime, long size, String fileKey) {
+		VersionTable.Entry e = new VersionTable.Entry();
+		e.number = number;
+		e.mtime = mtime;
+		e.size = size;
+		e.fileKey = fileKey;
+		return e;
+	}
+}